@@ -0,0 +1,92 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket holding up to a second's worth of bytes. Readers take tokens after each read
+ * and sleep off whatever they overdrew, so there's no polling and one short lock per read.
+ * A limiter can have a parent (the global limit) that every byte also has to get through.
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SEC = 1000000000L;
+
+    public static final long UNLIMITED = 0;
+
+    private final BandwidthLimiter parent;
+
+    private volatile long rate; // bytes per second
+    private long tokens;
+    private long last;
+
+    public BandwidthLimiter(long rate, BandwidthLimiter parent){
+        this.parent = parent;
+        setRate(rate);
+    }
+
+    public synchronized void setRate(long rate){
+        this.rate = Math.max(UNLIMITED, rate);
+        tokens = Math.min(tokens, this.rate);
+        last = System.nanoTime();
+    }
+
+    public long getRate(){
+        return rate;
+    }
+
+    /**
+     * Take tokens for bytes that were just read, sleeping if the bucket is overdrawn.
+     * @throws InterruptedIOException if the download is cancelled while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long r = rate;
+        if(r > UNLIMITED){
+            long wait = 0;
+            synchronized (this){
+                long now = System.nanoTime();
+                // cap the refill at a second so a long idle can't overflow or bank a huge burst
+                long elapsed = Math.min(now - last, NANOS_PER_SEC);
+                tokens = Math.min(r, tokens + elapsed * r / NANOS_PER_SEC);
+                last = now;
+
+                tokens -= bytes;
+                if(tokens < 0){
+                    wait = -tokens * NANOS_PER_SEC / r;
+                }
+            }
+
+            if(wait > 0){
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for bandwidth");
+                }
+            }
+        }
+
+        if(parent != null){
+            parent.acquire(bytes);
+        }
+    }
+
+}
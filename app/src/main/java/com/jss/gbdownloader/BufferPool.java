@@ -0,0 +1,102 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers for the download write path, kept around between downloads so the copy loop
+ * doesn't allocate. Sizes are powers of two between MIN_SIZE and MAX_SIZE.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    // stop keeping released buffers once this many bytes are sitting in the pool
+    private static final long MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<ByteBuffer>[] pool = new ArrayDeque[CLASSES];
+    private static long pooledBytes = 0;
+
+    static {
+        for(int i = 0; i < CLASSES; i++){
+            pool[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return a cleared buffer of at least size bytes (capped at MAX_SIZE)
+     */
+    public static ByteBuffer acquire(int size){
+        int cls = classOf(size);
+        synchronized (pool){
+            ByteBuffer buf = pool[cls].pollFirst();
+            if(buf != null){
+                pooledBytes -= buf.capacity();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(MIN_SIZE << cls);
+    }
+
+    public static void release(ByteBuffer buf){
+        if(buf == null || !buf.isDirect() || Integer.bitCount(buf.capacity()) != 1){
+            return; // not one of ours
+        }
+
+        buf.clear();
+        synchronized (pool){
+            if(pooledBytes + buf.capacity() <= MAX_POOLED_BYTES){
+                pool[classOf(buf.capacity())].addFirst(buf);
+                pooledBytes += buf.capacity();
+            }
+        }
+    }
+
+    /**
+     * Pick a buffer size for a measured rate, about an eighth of a second's worth of data, so
+     * fast downloads write in big chunks and slow ones don't sit on a half full buffer.
+     */
+    public static int sizeFor(long bytesPerSec){
+        if(bytesPerSec <= 0){
+            return DEFAULT_SIZE;
+        }
+        return MIN_SIZE << classOf(Math.min(bytesPerSec / 8, MAX_SIZE));
+    }
+
+    private static int classOf(long size){
+        if(size <= MIN_SIZE){
+            return 0;
+        }
+        if(size >= MAX_SIZE){
+            return CLASSES - 1;
+        }
+        // round up to the next power of two
+        int bits = 64 - Long.numberOfLeadingZeros(size - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+}
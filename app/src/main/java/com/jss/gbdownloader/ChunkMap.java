@@ -0,0 +1,276 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CRC32 of every fixed size chunk of a download, kept next to it so a corrupt file can be
+ * checked chunk by chunk and only the chunks that fail fetched again. Chunks are hashed as
+ * their bytes are written. One that a run only saw part of, split across ranges or across a
+ * resume, stays unknown until fill() reads it back, which is a couple of chunks per range.
+ */
+public class ChunkMap {
+
+    private static final String TAG = ChunkMap.class.getSimpleName();
+
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final long UNKNOWN = -1;
+
+    private final long length;
+    private final int chunkSize;
+    private final String validator;
+    private final long[] crcs;
+
+    public ChunkMap(long length, String validator){
+        this(length, CHUNK_SIZE, validator);
+    }
+
+    private ChunkMap(long length, int chunkSize, String validator){
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.validator = validator;
+        this.crcs = new long[(int) ((length + chunkSize - 1) / chunkSize)];
+        Arrays.fill(crcs, UNKNOWN);
+    }
+
+    /**
+     * @return the map, or null if there isn't one or it can't be read
+     */
+    public static ChunkMap load(File file){
+        if(file == null || !file.exists()){
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+
+            // length chunkSize [validator], then a line per chunk, crc in hex or - if unknown
+            String[] head = reader.readLine().split("\t");
+            ChunkMap map = new ChunkMap(Long.parseLong(head[0]), Integer.parseInt(head[1]),
+                    (head.length > 2) ? head[2] : null);
+            for(int i = 0; i < map.crcs.length; i++){
+                String line = reader.readLine();
+                map.crcs[i] = line.equals("-") ? UNKNOWN : Long.parseLong(line, 16);
+            }
+            return map;
+
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't load chunk map: " + file, e);
+        } finally {
+            if(reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing chunk map", e);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the map out through a temp file and a rename, same as the partial state.
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            Writer writer = new OutputStreamWriter(fos, "US-ASCII");
+            writer.write(length + "\t" + chunkSize + ((validator != null) ? "\t" + validator : "") + "\n");
+            for(long crc : crcs){
+                writer.write((crc == UNKNOWN) ? "-\n" : Long.toHexString(crc) + "\n");
+            }
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if(!tmp.renameTo(file)){
+            throw new IOException("Couldn't replace chunk map " + file);
+        }
+    }
+
+    /**
+     * @param from where in the file the bytes it'll be given start
+     */
+    public Hasher hasher(long from){
+        return new Hasher(from);
+    }
+
+    /**
+     * Read back and hash every chunk that's still unknown.
+     */
+    public void fill(FileChannel channel) throws IOException {
+        for(int i = 0; i < crcs.length; i++){
+            if(get(i) == UNKNOWN){
+                set(i, RangeChecksum.read(channel, getStart(i), getLength(i)).getValue());
+            }
+        }
+    }
+
+    /**
+     * Hash the file chunk by chunk against the map. Chunks past the end of the file, and ones
+     * the map never got a CRC for, count as bad.
+     * @return [start, end) of each run of bad chunks
+     */
+    public List<long[]> verify(FileChannel channel) throws IOException {
+        List<long[]> bad = new ArrayList<>();
+        long size = channel.size();
+        for(int i = 0; i < crcs.length; i++){
+            if(Thread.currentThread().isInterrupted()){
+                throw new InterruptedIOException("Verify cancelled");
+            }
+
+            long start = getStart(i);
+            long end = start + getLength(i);
+            long crc = get(i);
+            if(crc != UNKNOWN && end <= size && RangeChecksum.read(channel, start, end - start).getValue() == crc){
+                continue;
+            }
+
+            long[] last = bad.isEmpty() ? null : bad.get(bad.size() - 1);
+            if(last != null && last[1] == start){
+                last[1] = end;
+            } else {
+                bad.add(new long[]{ start, end });
+            }
+        }
+        return bad;
+    }
+
+    /**
+     * Forget the chunks in [start, end), they're being written again.
+     */
+    public void invalidate(long start, long end){
+        for(int i = (int) (start / chunkSize); i < crcs.length && getStart(i) < end; i++){
+            set(i, UNKNOWN);
+        }
+    }
+
+    /**
+     * @return checksum of [start, end) put together from the chunks, both ends on chunk
+     * boundaries and every chunk in between known
+     */
+    public RangeChecksum getChecksum(long start, long end){
+        RangeChecksum checksum = new RangeChecksum();
+        for(int i = (int) (start / chunkSize); i < crcs.length && getStart(i) < end; i++){
+            checksum.add(getLength(i), get(i));
+        }
+        return checksum;
+    }
+
+    public long getLength(){
+        return length;
+    }
+
+    public String getValidator(){
+        return validator;
+    }
+
+    private long getStart(int index){
+        return (long) index * chunkSize;
+    }
+
+    private long getLength(int index){
+        return Math.min(chunkSize, length - getStart(index));
+    }
+
+    // ranges hash their chunks on their own threads, never the same chunk
+    private synchronized long get(int index){
+        return crcs[index];
+    }
+
+    private synchronized void set(int index, long crc){
+        crcs[index] = crc;
+    }
+
+    /**
+     * Hashes the chunks of one run of writes, only moved along by the thread doing the writing.
+     * Keeps one checksum for the whole run, so hashing a write allocates nothing.
+     */
+    public class Hasher {
+
+        private long pos;
+        // CRC of the chunk pos is in
+        private final RangeChecksum current = new RangeChecksum();
+        // false if the run started partway into the chunk, so there's no CRC of all of it
+        private boolean hashing;
+
+        private Hasher(long from){
+            pos = from;
+            hashing = (from % chunkSize == 0);
+        }
+
+        /**
+         * Add the bytes between the buffer's position and limit, leaving the buffer as it was.
+         */
+        public void update(ByteBuffer data){
+            int start = data.position();
+            int limit = data.limit();
+            try {
+                while(data.position() < limit && pos < length){
+                    int index = (int) (pos / chunkSize);
+                    long chunkEnd = getStart(index) + getLength(index);
+                    int n = (int) Math.min(limit - data.position(), chunkEnd - pos);
+
+                    if(hashing){
+                        data.limit(data.position() + n);
+                        current.update(data);
+                        data.limit(limit);
+                    }
+                    data.position(data.position() + n);
+                    pos += n;
+
+                    if(pos == chunkEnd){
+                        if(hashing){
+                            set(index, current.getValue());
+                        }
+                        current.reset();
+                        hashing = true; // every chunk after this one starts on its boundary
+                    }
+                }
+            } finally {
+                data.limit(limit);
+                data.position(start);
+            }
+        }
+    }
+
+}
@@ -22,12 +22,43 @@ package com.jss.gbdownloader;
 public class Constants {
 
     public static final String DL_PROG_INTENT_ACTION = "com.jss.gbdownloader.DL_PROG_INTENT_ACTION";
-    public static final String DL_PROG_URL_KEY = "URL_KEY";
-    public static final String DL_PROG_PROGRESS_KEY = "PROGRESS_KEY";
+    // a progress frame is parallel arrays, one entry per download that changed
+    public static final String DL_PROG_URLS_KEY = "URLS_KEY";
+    public static final String DL_PROG_DONE_KEY = "DONE_KEY";
+    public static final String DL_PROG_TOTAL_KEY = "TOTAL_KEY";
+    public static final String DL_PROG_RATE_KEY = "RATE_KEY";
+    public static final String DL_PROG_FINISHED_KEY = "FINISHED_KEY";
+    // the service's throughput estimate, a single long, so the list can pick auto qualities itself
+    public static final String DL_PROG_THROUGHPUT_KEY = "THROUGHPUT_RATE_KEY";
+
+    // sizes found by probing, urls and totals under the same keys as a progress frame
+    public static final String SIZES_INTENT_ACTION = "com.jss.gbdownloader.SIZES_INTENT_ACTION";
+
+    // a finished download was checked against its chunk map, the url and how many of its bytes
+    // failed and are being fetched again, -1 if it couldn't be checked
+    public static final String REPAIR_INTENT_ACTION = "com.jss.gbdownloader.REPAIR_INTENT_ACTION";
+    public static final String REPAIR_URL_KEY = "REPAIR_URL_KEY";
+    public static final String REPAIR_BAD_KEY = "REPAIR_BAD_KEY";
 
     public static final String API_KEY = "API_KEY_KEY";
     public static final String PREFS_FILE = "PREFS_FILE";
 
+    public static final String MAX_DOWNLOADS_KEY = "MAX_DOWNLOADS_KEY";
+    public static final String MAX_HOST_DOWNLOADS_KEY = "MAX_HOST_DOWNLOADS_KEY";
+    public static final int DEFAULT_MAX_DOWNLOADS = 3;
+    // connections to any one host, a segmented download takes one per range it fetches at once
+    public static final int DEFAULT_MAX_HOST_DOWNLOADS = 4;
+
+    // bytes per second, 0 for no limit
+    public static final String RATE_LIMIT_KEY = "RATE_LIMIT_KEY";
+    public static final String DOWNLOAD_RATE_LIMIT_KEY = "DOWNLOAD_RATE_LIMIT_KEY";
+
+    // last measured throughput, bytes per second, for auto quality to start from
+    public static final String THROUGHPUT_KEY = "THROUGHPUT_KEY";
+
+    // download queue priorities, higher goes first
+    public static final int DEFAULT_PRIORITY = 0;
+
     public enum DLButtonState {
         READY,
         DOWNLOADING,
@@ -0,0 +1,76 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.util.HashMap;
+
+/**
+ * Space promised to downloads that know their size but haven't taken it on disk yet. Usable
+ * space alone doesn't cover that, downloads starting together would each see the same free
+ * space and all go ahead. A reservation is released once the space is really allocated, or
+ * when the download stops.
+ */
+public class DiskBudget {
+
+    private final long margin;
+    private final HashMap<String, Long> reservations = new HashMap<>();
+    private long reserved = 0;
+
+    /**
+     * @param margin bytes to always leave free
+     */
+    public DiskBudget(long margin){
+        this.margin = margin;
+    }
+
+    /**
+     * Reserve space for a download, replacing whatever it had reserved before.
+     * @param usable bytes free where it's going
+     * @return false if it doesn't fit, nothing is reserved then
+     */
+    public synchronized boolean reserve(String uri, long bytes, long usable){
+        release(uri);
+        if(bytes <= 0){
+            return true;
+        }
+        if(getAvailable(usable) < bytes){
+            return false;
+        }
+        reservations.put(uri, bytes);
+        reserved += bytes;
+        return true;
+    }
+
+    public synchronized void release(String uri){
+        Long bytes = reservations.remove(uri);
+        if(bytes != null){
+            reserved -= bytes;
+        }
+    }
+
+    /**
+     * @param usable bytes free where downloads go
+     * @return the part of it that nothing has reserved, less the margin
+     */
+    public synchronized long getAvailable(long usable){
+        return usable - reserved - margin;
+    }
+
+}
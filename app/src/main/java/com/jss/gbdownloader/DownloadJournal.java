@@ -0,0 +1,289 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only log of what happened to each download, so the queue survives the process being
+ * killed. One event per line, "type\turi[\tvalue]":
+ *   E enqueued (value is the priority), S started, P progressed (value is bytes done),
+ *   U paused, R resumed, C completed, X cancelled or failed for good.
+ * Replaying it gives back every download that was queued and never finished. It's rewritten
+ * with one line per live download on replay and whenever it's grown too long.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = DownloadJournal.class.getSimpleName();
+
+    private static final char ENQUEUED = 'E';
+    private static final char STARTED = 'S';
+    private static final char PROGRESSED = 'P';
+    private static final char PAUSED = 'U';
+    private static final char RESUMED = 'R';
+    private static final char COMPLETED = 'C';
+    private static final char REMOVED = 'X';
+
+    // rewrite once this many lines have been appended since the last rewrite
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private FileOutputStream out;
+    private int appended = 0;
+    // set by close(), anything recorded after that opens and closes the file on its own
+    private boolean closed = false;
+
+    public DownloadJournal(File file){
+        this.file = file;
+    }
+
+    /**
+     * Read the journal back and compact it. Call once, before anything is recorded.
+     * @return downloads that were queued and never completed or cancelled, in queue order
+     */
+    public synchronized List<Entry> replay(){
+        entries.clear();
+
+        if(file.exists()){
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                String line;
+                while((line = reader.readLine()) != null){
+                    apply(line);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read journal, keeping what was read", e);
+            } finally {
+                if(reader != null){
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "exception closing journal", e);
+                    }
+                }
+            }
+        }
+
+        compact();
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void enqueued(String uri, int priority){
+        Entry entry = entries.get(uri);
+        if(entry == null){
+            entries.put(uri, new Entry(uri, priority));
+        } else {
+            entry.priority = priority;
+        }
+        append(ENQUEUED, uri, String.valueOf(priority), true);
+    }
+
+    public synchronized void started(String uri){
+        if(entries.containsKey(uri)){
+            append(STARTED, uri, null, false);
+        }
+    }
+
+    public synchronized void progressed(String uri, long done){
+        Entry entry = entries.get(uri);
+        if(entry != null && entry.done != done){
+            entry.done = done;
+            append(PROGRESSED, uri, String.valueOf(done), false);
+        }
+    }
+
+    public synchronized void paused(String uri, boolean paused){
+        Entry entry = entries.get(uri);
+        if(entry != null){
+            entry.paused = paused;
+            append(paused ? PAUSED : RESUMED, uri, null, true);
+        }
+    }
+
+    public synchronized void completed(String uri){
+        if(entries.remove(uri) != null){
+            append(COMPLETED, uri, null, true);
+        }
+    }
+
+    public synchronized void removed(String uri){
+        if(entries.remove(uri) != null){
+            append(REMOVED, uri, null, true);
+        }
+    }
+
+    /**
+     * Close the file. Tasks that were cancelled can still be finishing, what they record after
+     * this is still written, the file just isn't kept open for it.
+     */
+    public synchronized void close(){
+        closed = true;
+        closeOut();
+    }
+
+    private void apply(String line){
+        String[] parts = line.split("\t");
+        if(parts.length < 2 || parts[0].length() != 1){
+            return; // torn write at the end of the file, or garbage
+        }
+
+        String uri = parts[1];
+        Entry entry = entries.get(uri);
+        try {
+            switch (parts[0].charAt(0)){
+                case ENQUEUED:
+                    int priority = Integer.parseInt(parts[2]);
+                    if(entry == null){
+                        entries.put(uri, new Entry(uri, priority));
+                    } else {
+                        entry.priority = priority;
+                    }
+                    break;
+                case PROGRESSED:
+                    if(entry != null){
+                        entry.done = Long.parseLong(parts[2]);
+                    }
+                    break;
+                case PAUSED:
+                case RESUMED:
+                    if(entry != null){
+                        entry.paused = parts[0].charAt(0) == PAUSED;
+                    }
+                    break;
+                case COMPLETED:
+                case REMOVED:
+                    entries.remove(uri);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Skipping bad journal line: " + line);
+        }
+    }
+
+    private void append(char type, String uri, String value, boolean sync){
+        if(appended >= COMPACT_THRESHOLD){
+            compact();
+            if(appended == 0){
+                return; // the entry's current state is already in memory, so the rewrite covers the new event
+            }
+        }
+
+        try {
+            if(out == null){
+                out = new FileOutputStream(file, true);
+            }
+
+            StringBuilder line = new StringBuilder().append(type).append('\t').append(uri);
+            if(value != null){
+                line.append('\t').append(value);
+            }
+            out.write(line.append('\n').toString().getBytes("UTF-8"));
+            if(sync){
+                // progress can be lost to a power cut, the queue itself shouldn't be
+                out.getFD().sync();
+            }
+            appended++;
+            if(closed){
+                closeOut();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't append to journal", e);
+            closeOut();
+        }
+    }
+
+    private void compact(){
+        closeOut();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            StringBuilder lines = new StringBuilder();
+            for(Entry entry : entries.values()){
+                lines.append(ENQUEUED).append('\t').append(entry.uri).append('\t').append(entry.priority).append('\n');
+                if(entry.done > 0){
+                    lines.append(PROGRESSED).append('\t').append(entry.uri).append('\t').append(entry.done).append('\n');
+                }
+                if(entry.paused){
+                    lines.append(PAUSED).append('\t').append(entry.uri).append('\n');
+                }
+            }
+            fos.write(lines.toString().getBytes("UTF-8"));
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if(!tmp.renameTo(file)){
+                throw new IOException("Couldn't replace journal");
+            }
+            appended = 0;
+        } catch (IOException e) {
+            // the old journal is still there, it's just longer than it needs to be
+            Log.e(TAG, "Couldn't compact journal", e);
+        } finally {
+            if(fos != null){
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing journal", e);
+                }
+            }
+        }
+    }
+
+    private void closeOut(){
+        if(out != null){
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing journal", e);
+            }
+            out = null;
+        }
+    }
+
+    public static class Entry {
+        public final String uri;
+        public int priority;
+        public long done = 0;
+        public boolean paused = false;
+
+        Entry(String uri, int priority){
+            this.uri = uri;
+            this.priority = priority;
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Where the time goes in each download: connecting (DNS, TCP and TLS together, that's as fine
+ * as HttpURLConnection lets us see), waiting on the response headers, the first byte of data
+ * and the whole download, plus a histogram of the rate and how many retries it took. Kept in
+ * memory for running downloads and the last MAX_HISTORY finished ones, and written out as JSON
+ * on request so runs can be compared across releases and CDNs.
+ */
+public class DownloadMetrics {
+
+    private static final String TAG = DownloadMetrics.class.getSimpleName();
+
+    private static final int MAX_HISTORY = 50;
+
+    // rate histogram buckets, bucket i counts samples below MIN_BUCKET_RATE << i, the last one everything faster
+    private static final long MIN_BUCKET_RATE = 16 * 1024;
+    private static final int BUCKETS = 12;
+
+    public static final String RUNNING = "running";
+    public static final String COMPLETED = "completed";
+    public static final String FAILED = "failed";
+    public static final String STOPPED = "stopped";
+
+    private final LinkedHashMap<String, Record> running = new LinkedHashMap<>();
+    private final ArrayDeque<Record> finished = new ArrayDeque<>();
+
+    /**
+     * A download task started, replacing any record still running for the uri.
+     */
+    public synchronized void started(String uri){
+        running.put(uri, new Record(uri));
+    }
+
+    /**
+     * @param connectMs time in connect(), DNS + TCP + TLS
+     * @param responseMs time from the request going out to the response headers
+     */
+    public synchronized void connected(String uri, long connectMs, long responseMs){
+        Record record = running.get(uri);
+        if(record != null){
+            record.connections++;
+            record.connectMs += connectMs;
+            record.maxConnectMs = Math.max(record.maxConnectMs, connectMs);
+            record.responseMs += responseMs;
+            record.maxResponseMs = Math.max(record.maxResponseMs, responseMs);
+        }
+    }
+
+    public synchronized void firstByte(String uri){
+        Record record = running.get(uri);
+        if(record != null && record.firstByteMs < 0){
+            record.firstByteMs = SystemClock.elapsedRealtime() - record.startElapsed;
+        }
+    }
+
+    public synchronized void transferred(String uri, long bytes){
+        Record record = running.get(uri);
+        if(record != null){
+            record.bytes += bytes;
+        }
+    }
+
+    /**
+     * @param bytesPerSec one rate sample, taken once per progress tick
+     */
+    public synchronized void sampled(String uri, long bytesPerSec){
+        Record record = running.get(uri);
+        if(record != null && bytesPerSec > 0){
+            int bucket = 0;
+            while(bucket < BUCKETS - 1 && bytesPerSec >= (MIN_BUCKET_RATE << bucket)){
+                bucket++;
+            }
+            record.histogram[bucket]++;
+        }
+    }
+
+    public synchronized void retried(String uri){
+        Record record = running.get(uri);
+        if(record != null){
+            record.retries++;
+        }
+    }
+
+    /**
+     * The task is done with the download, one way or another.
+     * @param result COMPLETED, FAILED or STOPPED
+     */
+    public synchronized void ended(String uri, String result){
+        Record record = running.remove(uri);
+        if(record != null){
+            record.result = result;
+            record.totalMs = SystemClock.elapsedRealtime() - record.startElapsed;
+            finished.addLast(record);
+            if(finished.size() > MAX_HISTORY){
+                finished.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * @return the latest record for the uri as JSON, running or finished, or null if there isn't one
+     */
+    public synchronized String get(String uri){
+        Record record = running.get(uri);
+        // newest first, a uri can be in the history more than once
+        Iterator<Record> it = finished.descendingIterator();
+        while(record == null && it.hasNext()){
+            Record old = it.next();
+            if(old.uri.equals(uri)){
+                record = old;
+            }
+        }
+        try {
+            return (record == null) ? null : record.toJson().toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't write metrics: " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return every record, with the app version and device, as JSON
+     */
+    public synchronized String getAll(){
+        try {
+            return toJson().toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't write metrics", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write every record into dir as metrics-[time].json.
+     * @return the file written
+     */
+    public File dump(File dir) throws IOException {
+        String json;
+        synchronized (this){
+            try {
+                json = toJson().toString(2);
+            } catch (JSONException e) {
+                throw new IOException("Couldn't write metrics", e);
+            }
+        }
+
+        File file = new File(dir, "metrics-" + System.currentTimeMillis() + ".json");
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(json.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONArray downloads = new JSONArray();
+        for(Record record : finished){
+            downloads.put(record.toJson());
+        }
+        for(Record record : running.values()){
+            downloads.put(record.toJson());
+        }
+
+        return new JSONObject()
+                .put("version", BuildConfig.VERSION_NAME)
+                .put("versionCode", BuildConfig.VERSION_CODE)
+                .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("time", System.currentTimeMillis())
+                .put("downloads", downloads);
+    }
+
+    private static class Record {
+        final String uri;
+        final String host;
+        final long startTime = System.currentTimeMillis();
+        final long startElapsed = SystemClock.elapsedRealtime();
+
+        String result = RUNNING;
+        int connections = 0;
+        long connectMs = 0;
+        long maxConnectMs = 0;
+        long responseMs = 0;
+        long maxResponseMs = 0;
+        long firstByteMs = -1;
+        long totalMs = -1;
+        long bytes = 0;
+        int retries = 0;
+        final long[] histogram = new long[BUCKETS];
+
+        Record(String uri){
+            this.uri = uri;
+            String h = null;
+            try {
+                h = new URI(uri).getHost();
+            } catch (Exception e) {
+                // stays null, it's only for grouping
+            }
+            this.host = h;
+        }
+
+        JSONObject toJson() throws JSONException {
+            long elapsed = (totalMs >= 0) ? totalMs : SystemClock.elapsedRealtime() - startElapsed;
+
+            JSONArray buckets = new JSONArray();
+            for(long count : histogram){
+                buckets.put(count);
+            }
+
+            return new JSONObject()
+                    .put("uri", uri)
+                    .put("host", host)
+                    .put("result", result)
+                    .put("start", startTime)
+                    .put("connections", connections)
+                    .put("connectMsAvg", (connections > 0) ? connectMs / connections : -1)
+                    .put("connectMsMax", maxConnectMs)
+                    .put("responseMsAvg", (connections > 0) ? responseMs / connections : -1)
+                    .put("responseMsMax", maxResponseMs)
+                    .put("firstByteMs", firstByteMs)
+                    .put("totalMs", elapsed)
+                    .put("bytes", bytes)
+                    .put("bytesPerSec", (elapsed > 0) ? bytes * 1000 / elapsed : 0)
+                    .put("retries", retries)
+                    .put("rateHistogramMin", MIN_BUCKET_RATE)
+                    .put("rateHistogram", buckets);
+        }
+    }
+
+}
@@ -0,0 +1,440 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs download tasks with a cap on how many run at once, and on how many connections are
+ * open to any one host. A running task counts as one connection, plus the extra ones it's
+ * given by requestConnections. Tasks over either cap wait in the queue until a running one
+ * finishes, and the highest priority runnable task goes next. Ties go to whichever was queued first.
+ */
+public class DownloadScheduler {
+
+    // higher runs first, ties by queue order (lower seq first)
+    private static final Comparator<Task> ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if(a.priority != b.priority){
+                return (a.priority > b.priority) ? -1 : 1;
+            }
+            return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+        }
+    };
+
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+
+    private final List<Task> queue = new ArrayList<>();
+    private final List<Task> active = new ArrayList<>();
+    // connections open to each host, one per running task plus their extras
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+
+    // seq counts up for the back of the queue and down for the front
+    private long backSeq = 0;
+    private long frontSeq = 0;
+
+    private int maxConcurrent;
+    private int maxPerHost;
+
+    private final IdleListener idleListener;
+
+    public DownloadScheduler(int maxConcurrent, int maxPerHost, IdleListener idleListener){
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.idleListener = idleListener;
+    }
+
+    public Future<String> submit(String uri, int priority, Callable<String> callable){
+        return submit(uri, priority, false, callable);
+    }
+
+    /**
+     * @param paused queue it paused, it doesn't run until it's resumed
+     */
+    public synchronized Future<String> submit(String uri, int priority, boolean paused, Callable<String> callable){
+        Task task = new Task(uri, callable, priority, backSeq++);
+        task.paused = paused;
+        queue.add(task);
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Change the caps. Raising them starts waiting tasks right away, lowering them lets the
+     * running ones finish and holds new ones back until they're under the new caps.
+     */
+    public synchronized void setLimits(int maxConcurrent, int maxPerHost){
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerHost = Math.max(1, maxPerHost);
+        dispatch();
+    }
+
+    public synchronized int getMaxConcurrent(){
+        return maxConcurrent;
+    }
+
+    public synchronized int getMaxPerHost(){
+        return maxPerHost;
+    }
+
+    /**
+     * @return false if the uri isn't known. A running task keeps running, the priority only
+     * matters if it gets paused and goes back in the queue.
+     */
+    public synchronized boolean setPriority(String uri, int priority){
+        Task task = find(uri);
+        if(task == null){
+            return false;
+        }
+        task.priority = priority;
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Put a waiting task ahead of everything else in the queue. Running tasks are left alone.
+     * @return false if the uri isn't waiting in the queue
+     */
+    public synchronized boolean moveToFront(String uri){
+        Task task = findQueued(uri);
+        if(task == null){
+            return false;
+        }
+
+        for(Task other : queue){
+            task.priority = Math.max(task.priority, other.priority);
+        }
+        task.seq = --frontSeq;
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Hold a task back without dropping it. A running task is stopped and put back in the
+     * queue, whatever it already wrote stays on disk for when it's resumed.
+     * @return the future now standing in for the uri, or null if the uri isn't known
+     */
+    public Future<String> pause(String uri){
+        Task stopping = null;
+        Task paused;
+        synchronized (this){
+            paused = findQueued(uri);
+            if(paused == null){
+                stopping = findActive(uri);
+                if(stopping == null){
+                    return null;
+                }
+                // a FutureTask can't be run twice, so a fresh one waits in the queue
+                paused = new Task(uri, stopping.callable, stopping.priority, stopping.seq);
+                queue.add(paused);
+            }
+            paused.paused = true;
+        }
+
+        if(stopping != null){
+            stopping.cancel(true);
+        }
+        return paused;
+    }
+
+    /**
+     * A task that was running when it was paused only goes again once the old run has really
+     * returned, it may still be stuck in a read for a while after being interrupted.
+     * @return false if the uri isn't paused
+     */
+    public synchronized boolean resume(String uri){
+        Task task = findQueued(uri);
+        if(task == null || !task.paused){
+            return false;
+        }
+        task.paused = false;
+        dispatch();
+        return true;
+    }
+
+    public synchronized boolean isPaused(String uri){
+        Task task = findQueued(uri);
+        return task != null && task.paused;
+    }
+
+    /**
+     * Put a running task back in the queue until releaseHeld, for when it can't go on yet for
+     * reasons of its own. Called by the task itself, which should return right after.
+     * @return the future now standing in for the uri, or null if it isn't running
+     */
+    public synchronized Future<String> hold(String uri){
+        Task running = findActive(uri);
+        if(running == null){
+            return null;
+        }
+        Task held = new Task(uri, running.callable, running.priority, running.seq);
+        held.held = true;
+        queue.add(held);
+        return held;
+    }
+
+    /**
+     * @return false if the uri isn't held
+     */
+    public synchronized boolean releaseHeld(String uri){
+        Task task = findQueued(uri);
+        if(task == null || !task.held){
+            return false;
+        }
+        task.held = false;
+        dispatch();
+        return true;
+    }
+
+    public synchronized boolean isHeld(String uri){
+        Task task = findQueued(uri);
+        return task != null && task.held;
+    }
+
+    /**
+     * Ask for connections for a running task, for downloads that fetch ranges in parallel.
+     * Extras only come out of what the host cap has left over, so a task always gets its
+     * one and may get fewer than it wants. Asking again replaces what it had, asking for one
+     * gives the extras back.
+     * @return how many the task can have open at once, at least 1
+     */
+    public synchronized int requestConnections(String uri, int wanted){
+        Task task = findActive(uri);
+        if(task == null){
+            return 1;
+        }
+
+        Integer onHost = runningPerHost.get(task.host);
+        int others = ((onHost == null) ? 1 : onHost) - 1 - task.extra;
+        int extra = Math.max(0, Math.min(wanted - 1, maxPerHost - others - 1));
+        boolean gaveBack = extra < task.extra;
+        task.extra = extra;
+        runningPerHost.put(task.host, others + 1 + extra);
+        if(gaveBack){
+            dispatch();
+        }
+        return 1 + extra;
+    }
+
+    public synchronized boolean isRunning(String uri){
+        return findActive(uri) != null;
+    }
+
+    /**
+     * @return true if nothing is running and nothing is waiting to run. Paused tasks don't
+     * count. Held tasks do, whatever's holding them has to stay around to let them go.
+     */
+    public synchronized boolean isIdle(){
+        if(!active.isEmpty()){
+            return false;
+        }
+        for(Task task : queue){
+            if(!task.paused){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdownNow(){
+        List<Task> waiting;
+        synchronized (this){
+            waiting = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for(Task task : waiting){
+            task.cancel(false);
+        }
+        exec.shutdownNow();
+    }
+
+    private void dispatch(){
+        Collections.sort(queue, ORDER);
+
+        Iterator<Task> it = queue.iterator();
+        while(active.size() < maxConcurrent && it.hasNext()){
+            Task task = it.next();
+            if(task.isCancelled()){
+                it.remove();
+                continue;
+            }
+            if(task.paused || task.held){
+                continue;
+            }
+            if(isStillRunning(task.uri)){
+                continue; // a cancelled run of it hasn't returned yet, onFinished comes back for it
+            }
+
+            Integer onHost = runningPerHost.get(task.host);
+            if(onHost != null && onHost >= maxPerHost){
+                continue; // leave it queued, something for another host may still fit
+            }
+
+            it.remove();
+            active.add(task);
+            runningPerHost.put(task.host, (onHost == null) ? 1 : onHost + 1);
+            exec.execute(task);
+        }
+    }
+
+    private Task find(String uri){
+        Task task = findQueued(uri);
+        return (task != null) ? task : findActive(uri);
+    }
+
+    private Task findQueued(String uri){
+        for(Task task : queue){
+            if(task.uri.equals(uri) && !task.isCancelled()){
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private Task findActive(String uri){
+        for(Task task : active){
+            if(task.uri.equals(uri) && !task.isCancelled()){
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a run of the uri is still on a thread, cancelled or not. Two runs of
+     * the same download would write the same partial.
+     */
+    private boolean isStillRunning(String uri){
+        for(Task task : active){
+            if(task.uri.equals(uri)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onCancelled(Task task){
+        boolean idle;
+        synchronized (this){
+            // still queued means it never started, so there's no slot to give back
+            if(!queue.remove(task)){
+                return;
+            }
+            idle = isIdle();
+        }
+
+        if(idle && idleListener != null){
+            idleListener.onIdle();
+        }
+    }
+
+    private void onFinished(Task task){
+        boolean idle;
+        synchronized (this){
+            active.remove(task);
+            Integer onHost = runningPerHost.get(task.host);
+            int left = (onHost == null) ? 0 : onHost - 1 - task.extra;
+            if(left <= 0){
+                runningPerHost.remove(task.host);
+            } else {
+                runningPerHost.put(task.host, left);
+            }
+
+            dispatch();
+            idle = isIdle();
+        }
+
+        if(idle && idleListener != null){
+            idleListener.onIdle();
+        }
+    }
+
+    private static String hostOf(String uri){
+        try {
+            String host = new URI(uri).getHost();
+            return (host == null) ? "" : host;
+        } catch (URISyntaxException e) {
+            return "";
+        }
+    }
+
+    private class Task extends FutureTask<String> {
+
+        private final String uri;
+        private final String host;
+        private final Callable<String> callable;
+
+        // guarded by the scheduler
+        private int priority;
+        private long seq;
+        private boolean paused = false;
+        private boolean held = false;
+        // connections it has on top of its own while it runs
+        private int extra = 0;
+
+        Task(String uri, Callable<String> callable, int priority, long seq){
+            super(callable);
+            this.uri = uri;
+            this.host = hostOf(uri);
+            this.callable = callable;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            // only release the slot once the thread is actually done with the connection,
+            // done() would fire as soon as it's cancelled
+            try {
+                super.run();
+            } finally {
+                onFinished(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled){
+                onCancelled(this);
+            }
+            return cancelled;
+        }
+    }
+
+    public interface IdleListener {
+        void onIdle();
+    }
+
+}
@@ -27,30 +27,45 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
+import com.jss.gbdownloader.aidl.DownloadStatus;
 import com.jss.gbdownloader.aidl.IDownloadServicelInterface;
+import com.jss.gbdownloader.net.HttpClient;
 import com.jss.gbdownloader.net.RestRequest;
+import com.jss.gbdownloader.storage.StorageBackend;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -61,16 +76,84 @@ public class DownloadService extends Service {
     public static final String DOWNLOAD_URI_SERVICE_KEY = "DOWNLOAD_URI_SERVICE_KEY";
     public static final String CANCEL_URI_SERVICE_KEY = "CANCEL_URI_SERVICE_KEY";
 
-    private ExecutorService dldExec;
+    // segmented downloads split a file into this many ranges, as long as each is at least MIN_SEGMENT_SIZE
+    private static final int SEGMENT_COUNT = 4;
+    private static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+    // how many bytes a range writes between saves of the partial state
+    private static final long STATE_SAVE_INTERVAL = 1024 * 1024;
+
+    private static final String JOURNAL_FILE = "downloads.journal";
+
+    // retries back off from about a second up to about a minute, and give up after this many failures in a row
+    private static final int MAX_FAILURES = 8;
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60000;
+    // a read that gets no data for this long is treated as a dead connection
+    private static final long STALL_TIMEOUT = 30000;
+    // left free on top of every download's reservation, and how often held downloads check for space
+    private static final long DISK_MARGIN = 64L * 1024 * 1024;
+    private static final long SPACE_CHECK_INTERVAL = 30000;
+    // how often queued auto quality downloads are checked against the throughput
+    private static final long AUTO_CHECK_INTERVAL = 5000;
+
+    private static final String SIZE_INDEX_FILE = "sizes.tsv";
+    private static final int MAX_PROBES = 2;
+
+    // how long a range sleeps between writes while a player waits on another one
+    private static final long STREAM_YIELD_MS = 50;
+    // how often a stream reading a partial looks for the download to have started or finished
+    private static final long STREAM_POLL_MS = 1000;
+
+    private DownloadScheduler dldScheduler;
+    private ExecutorService segmentExec;
+
+    private SharedPreferences prefs;
+
+    // every download draws from globalLimiter through its own limiter in downloadLimiters
+    private BandwidthLimiter globalLimiter;
+    private final ConcurrentHashMap<String, BandwidthLimiter> downloadLimiters = new ConcurrentHashMap<>();
+    private volatile long downloadRateLimit;
+
+    private ProgressAggregator progressAggregator;
+
+    private DownloadJournal journal;
+
+    private QualityPicker qualityPicker;
+    // auto quality downloads by the uri currently enqueued for them
+    private final ConcurrentHashMap<String, AutoChoice> autoChoices = new ConcurrentHashMap<>();
+    private long lastAutoCheck = 0; // only touched on the frame thread
+
+    private SizeIndex sizeIndex;
+    private SizeProber sizeProber;
+
+    private StreamServer streamServer;
+    // state of every segmented download in progress, so streams can wait on its writes
+    private final ConcurrentHashMap<String, PartialState> liveStates = new ConcurrentHashMap<>();
+
+    // finished downloads being checked against their chunk maps
+    private final Set<String> verifying = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(MAX_FAILURES, RETRY_BASE_DELAY, RETRY_MAX_DELAY);
+    private StallWatchdog stallWatchdog;
+
+    private final DownloadMetrics metrics = new DownloadMetrics();
+
+    private final DiskBudget diskBudget = new DiskBudget(DISK_MARGIN);
+    // bytes each download held for space is waiting on
+    private final ConcurrentHashMap<String, Long> spaceNeeded = new ConcurrentHashMap<>();
+    private final Runnable spaceCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkHeldForSpace();
+        }
+    };
 
-    private final Object currentLockObject = new Object();
     private final Object boundLockObject = new Object();
 
-    private Hashtable<String, Future<String>> pendingTasks;
+    // everything enqueued that hasn't finished, each task takes itself out when it's done
+    private final TaskRegistry registry = new TaskRegistry();
 
     private RestRequest.ReqMethod method = RestRequest.ReqMethod.GET;
-    private int readTimeout = 10000;
-    private int connectTimeout = 10000;
 
     private String apiQuery;
 
@@ -80,14 +163,94 @@ public class DownloadService extends Service {
 
     @Override
     public void onCreate(){
+        FileUtils.init(this);
         uiHandler = new Handler();
 
-        pendingTasks = new Hashtable<>();
+        prefs = this.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
+        apiQuery = "?api_key=" + prefs.getString(Constants.API_KEY, null);
 
-        dldExec = Executors.newSingleThreadExecutor();
+        dldScheduler = new DownloadScheduler(
+                prefs.getInt(Constants.MAX_DOWNLOADS_KEY, Constants.DEFAULT_MAX_DOWNLOADS),
+                prefs.getInt(Constants.MAX_HOST_DOWNLOADS_KEY, Constants.DEFAULT_MAX_HOST_DOWNLOADS),
+                new DownloadScheduler.IdleListener() {
+                    @Override
+                    public void onIdle() {
+                        stopIfIdle();
+                    }
+                });
+        segmentExec = Executors.newCachedThreadPool();
+        stallWatchdog = new StallWatchdog(STALL_TIMEOUT);
+
+        globalLimiter = new BandwidthLimiter(prefs.getLong(Constants.RATE_LIMIT_KEY, BandwidthLimiter.UNLIMITED), null);
+        downloadRateLimit = prefs.getLong(Constants.DOWNLOAD_RATE_LIMIT_KEY, BandwidthLimiter.UNLIMITED);
+
+        journal = new DownloadJournal(new File(getFilesDir(), JOURNAL_FILE));
+        qualityPicker = new QualityPicker(QualityPicker.DEFAULT_TARGET_MS,
+                prefs.getLong(Constants.THROUGHPUT_KEY, QualityPicker.DEFAULT_RATE));
+
+        sizeIndex = new SizeIndex(new File(getFilesDir(), SIZE_INDEX_FILE));
+        sizeIndex.load();
+        sizeProber = new SizeProber(sizeIndex, MAX_PROBES,
+                new SizeProber.Probe() {
+                    @Override
+                    public SizeIndex.Entry probe(String uri) throws IOException {
+                        return probeSize(uri);
+                    }
+                },
+                new SizeProber.Listener() {
+                    @Override
+                    public void onProbed(String[] uris, long[] lengths) {
+                        sendBroadcast(new Intent()
+                                .setAction(Constants.SIZES_INTENT_ACTION)
+                                .putExtra(Constants.DL_PROG_URLS_KEY, uris)
+                                .putExtra(Constants.DL_PROG_TOTAL_KEY, lengths)
+                        );
+                    }
+                });
 
-        SharedPreferences prefs = this.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
-        apiQuery = "?api_key=" + prefs.getString(Constants.API_KEY, null);
+        streamServer = new StreamServer(new StreamServer.Opener() {
+            @Override
+            public StreamServer.Source open(String uri) throws IOException {
+                return openStream(uri);
+            }
+        });
+
+        progressAggregator = new ProgressAggregator(new ProgressAggregator.FrameListener() {
+            @Override
+            public void onFrame(String[] uris, long[] done, long[] total, long[] rate, boolean[] finished) {
+                sendBroadcast(new Intent()
+                        .setAction(Constants.DL_PROG_INTENT_ACTION)
+                        .putExtra(Constants.DL_PROG_URLS_KEY, uris)
+                        .putExtra(Constants.DL_PROG_DONE_KEY, done)
+                        .putExtra(Constants.DL_PROG_TOTAL_KEY, total)
+                        .putExtra(Constants.DL_PROG_RATE_KEY, rate)
+                        .putExtra(Constants.DL_PROG_FINISHED_KEY, finished)
+                        .putExtra(Constants.DL_PROG_THROUGHPUT_KEY, qualityPicker.getRate())
+                );
+
+                long totalRate = 0;
+                for(int i = 0; i < uris.length; i++){
+                    if(!finished[i]){
+                        journal.progressed(uris[i], done[i]);
+                        metrics.sampled(uris[i], rate[i]);
+                        totalRate += rate[i];
+                    }
+                }
+
+                qualityPicker.sampled(totalRate);
+                long now = SystemClock.elapsedRealtime();
+                if(now - lastAutoCheck >= AUTO_CHECK_INTERVAL){
+                    lastAutoCheck = now;
+                    checkAutoChoices();
+                }
+            }
+        });
+
+        // pick up whatever was queued when the process last went away
+        for(DownloadJournal.Entry entry : journal.replay()){
+            // paused ones go in paused, so they never connect just to be stopped again
+            enqueueDownload(entry.uri, entry.priority, entry.paused);
+        }
     }
 
     @Override
@@ -95,243 +258,1291 @@ public class DownloadService extends Service {
         return Service.START_STICKY_COMPATIBILITY;
     }
 
-    private Future<String> startDownloadTask(final String uri){
-        cleanDownloadQueue();
+    private Future<String> startDownloadTask(final TaskRegistry.Entry entry, int priority, boolean paused){
+        final String uri = entry.getUri();
+        final BandwidthLimiter limiter = new BandwidthLimiter(downloadRateLimit, globalLimiter);
+        downloadLimiters.put(uri, limiter);
 
-//        synchronized (currentLockObject){
-            return dldExec.submit(new Callable<String>() {
+            return dldScheduler.submit(uri, priority, paused, new Callable<String>() {
                 @Override
                 public String call() {
-
-                    int responseCode = -1;
-                    String responseMessage = "bad_result";
-
-                    if(uri != null && !uri.isEmpty()){
-
-                        Pair<Long, FileOutputStream> pair = null;
-                        FileOutputStream fos = null;
-
-                        long at = FileUtils.checkIfPartialDownloaded(uri);
-                        if(at < 0){ //returns -1 if no partial
-                            at = 0;
-                        }
-
-                        // build request and download
-                        // lots of reused code from RawDataRequest,
-                        // but necessary so we can write to disk
-                        // instead of a buffer in ram
-
-                        HttpsURLConnection conn = null;
-                        StringBuilder result = new StringBuilder();
-
-                        try {
-                            URL url = new URL(uri + apiQuery);
-                            conn = (HttpsURLConnection) url.openConnection();
-                            conn.setRequestMethod(method.toString());
-                            // Set connection timeout and read timeout value.
-                            conn.setConnectTimeout(connectTimeout);
-                            conn.setReadTimeout(readTimeout);
-
-                            if( method == RestRequest.ReqMethod.GET ){
-                                conn.setRequestProperty("Accept", "video/mp4;video/*");
-                                if(at > 0){
-                                    conn.setRequestProperty("Range", "bytes=" + at + "-");
-                                }
-
-                                InputStream in = conn.getInputStream();
-
-                                //grab the response code and message in case of failure
-                                responseCode = conn.getResponseCode();
-                                responseMessage = conn.getResponseMessage();
+                    // a paused run can still be returning when it's resumed, everything it
+                    // cleans up on the way out is checked against this
+                    final int run = entry.start();
+                    try {
+                        int responseCode = -1;
+                        String responseMessage = "bad_result";
+
+                        if(uri != null && !uri.isEmpty() && method == RestRequest.ReqMethod.GET){
+
+                            journal.started(uri);
+                            metrics.started(uri);
+                            String result = DownloadMetrics.FAILED;
+
+                            // every attempt picks up from whatever the last one got to
+                            int failures = 0;
+                            while(true){
+                                HttpsURLConnection conn = null;
+                                boolean fresh = false;
+                                long doneBefore = getPartialDone(uri);
 
                                 try {
-                                    //if the response code is 206, it's sending a partial, so append
-                                    pair = FileUtils.getFileOutputStreamForUrl(uri, responseCode == 206);
-                                    fos = pair.second;
-
-                                    // check length with an if or else the annotation freaks out
-                                    long len = -1; //same as unknown
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                                        len = conn.getContentLengthLong();
-                                    } else {
-                                        len = conn.getContentLength();
+                                    PartialState state = FileUtils.loadPartialState(uri);
+                                    if(state != null){
+                                        // resuming a segmented download, each range picks up where it left off
+                                        PartialState.Segment seg = state.firstIncomplete();
+                                        if(seg != null){
+                                            conn = openRangeConnection(uri, seg.pos, seg.end - 1, state.getValidator());
+                                            responseCode = conn.getResponseCode();
+                                            responseMessage = conn.getResponseMessage();
+                                            if(!isExpectedRange(conn, seg.pos, state.getValidator())){
+                                                // the file changed on the server or it won't give us ranges anymore,
+                                                // either way the partial is useless
+                                                Log.w(TAG, "Partial no longer matches, starting over: " + uri);
+                                                discardPartial(uri);
+                                                state = null;
+                                                if(responseCode != 200){
+                                                    HttpClient.release(conn);
+                                                    conn = null;
+                                                } // else If-Range failed and it's sending the whole new file, keep it
+                                            }
+                                        }
                                     }
 
-                                    if(at > len){
-                                        //TODO let the app/user know so they can fix this (delete the file?)
-                                        if(len == -1){ //handle case where content length can't be determined
-                                            Log.e(TAG, "Content Length couldn't be determined");
-                                        } else {
-                                            throw new IOException("File size bigger than requested content");
-                                        }
+                                    if(state == null){
+                                        long at = 0;
+                                        if(conn == null){
+                                            at = FileUtils.checkIfPartialDownloaded(uri);
+                                            if(at < 0){ //returns -1 if no partial
+                                                at = 0;
+                                            }
 
-                                    }
+                                            // always ask for a range, a 206 back tells us the server can split the file.
+                                            // Only one byte of it, so the probe doesn't stream on past the first range
+                                            conn = openRangeConnection(uri, at, at, null);
+                                            responseCode = conn.getResponseCode();
+                                            responseMessage = conn.getResponseMessage();
+                                        }
 
-                                    if(len != -1){
-                                        len += at;//if it's resuming, len will only be the length of the download needed, so add the current progress
-                                    }
+                                        long total = -1;
+                                        int count = 1;
+                                        fresh = true;
+                                        String validator = getValidator(conn);
+                                        if(responseCode == 206 && isExpectedRange(conn, at, null)){
+                                            total = getTotalLength(conn);
+                                            count = SEGMENT_COUNT;
+                                        } else if(responseCode == 200){
+                                            // server sent the whole thing, it's one stream from the start
+                                            total = getContentLength(conn);
+                                            at = 0;
+                                        }
 
-                                    int oldProg = 0;
-                                    int read;
-                                    byte[] buf = new byte[2048];
-                                    while ((read = in.read(buf)) > -1) {
-                                        fos.write(buf, 0, read);
-
-                                        //update progress
-                                        at += read;
-                                        if(len > 0 && (at <= len)){
-
-                                            int prog = (int)(100 * (Double.longBitsToDouble(at) / Double.longBitsToDouble(len)));
-                                            if(prog >= 0 && prog <= 100 && prog > oldProg){ //should be a percentage so this shouldn't be a problem
-                                                oldProg = prog;
-
-                                                sendBroadcast(new Intent()
-                                                        //.setClass(DownloadService.this, MainActivity.class)
-                                                        .setAction(Constants.DL_PROG_INTENT_ACTION)
-                                                        .putExtra(Constants.DL_PROG_URL_KEY, uri)
-                                                        .putExtra(Constants.DL_PROG_PROGRESS_KEY, prog)
-                                                );
+                                        if(responseCode == 206){
+                                            // the probe's byte is drained and its connection goes back to the pool,
+                                            // every range opens its own bounded one
+                                            HttpClient.release(conn);
+                                            conn = null;
+                                            if(total <= 0){
+                                                // nothing to split by, the rest comes as one stream after all
+                                                conn = openRangeConnection(uri, at, -1, null);
+                                                responseCode = conn.getResponseCode();
+                                                responseMessage = conn.getResponseMessage();
                                             }
-                                        } else if (len == -1){//need some kind of indeterminate progress indicator without switching progress bar type
-                                            double mod = at % 6.28; //get some decimal between 0 and 2pi
-                                            double sin = Math.sin(mod); // get some decimal between -1 and 1
-                                            int prog = Math.abs((int)((100 * sin) / 25) * 25); //multi to percentage and snap to interval of 25 (less updates-ish)
-                                            if(prog >= 0 && prog <= 100 && prog != oldProg){ //should be a percentage so this shouldn't be a problem
-                                                oldProg = prog;
-
-                                                sendBroadcast(new Intent()
-                                                        //.setClass(DownloadService.this, MainActivity.class)
-                                                        .setAction(Constants.DL_PROG_INTENT_ACTION)
-                                                        .putExtra(Constants.DL_PROG_URL_KEY, uri)
-                                                        .putExtra(Constants.DL_PROG_PROGRESS_KEY, prog)
-                                                );
+                                        }
+
+                                        if(total > 0){
+                                            sizeIndex.put(uri, total, validator);
+                                            state = PartialState.split(at, total, count, MIN_SEGMENT_SIZE, validator);
+                                        } else {
+                                            // no length, nothing to preallocate or split
+                                            if(downloadSingleStream(uri, conn, at, limiter)){
+                                                journal.completed(uri);
+                                                result = DownloadMetrics.COMPLETED;
                                             }
                                         }
                                     }
 
-                                    fos.flush();
-                                    fos.close();
-                                    fos = null;
+                                    if(state != null){
+                                        if(!admit(entry, state.getLength())){
+                                            result = DownloadMetrics.STOPPED; // back in the queue until there's room
+                                            break;
+                                        }
+                                        if(fresh){
+                                            // saved before the file is preallocated, so a full size partial is never without its state
+                                            FileUtils.savePartialState(uri, state);
+                                        }
 
-                                    if(at == len || len == -1){ // only rename if we got the whole file, or we don't know the content length
-                                        File from = FileUtils.getPartialFileForUrl(uri);
-                                        File to = FileUtils.getFileForUrl(uri);
-                                        if(from != null && to != null){
-                                            from.renameTo(to);
+                                        // a resumed or repaired download carries on with the chunks it already has
+                                        ChunkMap chunks = fresh ? null : FileUtils.loadChunkMap(uri);
+                                        if(chunks == null || chunks.getLength() != state.getLength()){
+                                            chunks = new ChunkMap(state.getLength(), state.getValidator());
                                         }
-                                    }
 
+                                        liveStates.put(uri, state); // so a stream of it can wait on its writes
+                                        int connections = dldScheduler.requestConnections(uri, countIncomplete(state));
+                                        HttpsURLConnection first = conn;
+                                        conn = null; // the first range releases it when it's done with it
+                                        downloadSegmented(uri, first, state, chunks, limiter, connections);
+                                        saveChunkMap(uri, chunks);
+                                        finishDownload(uri);
+                                        saveChecksum(uri, state.getChecksum(), state.getLength());
+                                        FileUtils.deletePartialState(uri);
+                                        journal.completed(uri);
+                                        result = DownloadMetrics.COMPLETED;
+                                    }
+                                    break;
+
+                                } catch (ProtocolException e) {
+                                    Log.e(TAG, "Protocol Exception: " + uri, e);
+                                    journal.removed(uri); // it'd fail the same way on the next start
+                                    break;
+                                } catch (MalformedURLException e) {
+                                    Log.e(TAG, "Malformed URL: " + uri, e);
+                                    journal.removed(uri); // no point trying again
+                                    break;
+                                } catch (FileNotFoundException e) {
+                                    Log.d(TAG, "No Resource found at: " + uri);
+                                    journal.removed(uri);
+                                    break;
                                 } catch (IOException e) {
-                                    Log.e(TAG, "IOException getting file output stream", e);
+                                    // timeouts, stalls, dropped connections, worth another go
+                                    if(e instanceof SocketTimeoutException){
+                                        Log.e(TAG, "Timeout: " + uri, e);
+                                    } else {
+                                        Log.e(TAG, "IO Exception: " + uri, e);
+                                    }
+                                } finally {
+                                    // a single stream read to its end can go back to the pool, anything cut off can't
+                                    if(DownloadMetrics.COMPLETED.equals(result)){
+                                        HttpClient.release(conn);
+                                    } else {
+                                        HttpClient.abort(conn);
+                                    }
+                                    if(registry.isCurrent(entry, run)){
+                                        diskBudget.release(uri);
+                                        liveStates.remove(uri);
+                                        dldScheduler.requestConnections(uri, 1); // nothing needs its extras while it waits to retry
+                                    }
                                 }
 
-                            }
+                                if(Thread.currentThread().isInterrupted()){
+                                    result = DownloadMetrics.STOPPED; // cancelled or paused, not failed
+                                    break;
+                                }
 
-                        } catch (SocketTimeoutException e) {
-                            Log.e(TAG, "Timeout: " + uri, e);
-                        } catch (ProtocolException e) {
-                            Log.e(TAG, "Protocol Exception: " + uri, e);
-                        } catch (MalformedURLException e) {
-                            Log.e(TAG, "Malformed URL: " + uri, e);
-                        } catch (FileNotFoundException e) {
-                            Log.d(TAG, "No Resource found at: " + uri);
-                        } catch (IOException e) {
-                            Log.e(TAG, "IO Exception: " + uri, e);
-                        } finally {
-                            if(conn != null){
-                                conn.disconnect();
-                            }
-                            if(fos != null){
+                                // a failure after getting somewhere doesn't count against the ones before it
+                                failures = (getPartialDone(uri) > doneBefore) ? 1 : failures + 1;
+                                long delay = retryPolicy.getDelay(failures);
+                                if(delay < 0){
+                                    Log.e(TAG, "Giving up after " + failures + " failures: " + uri);
+                                    journal.removed(uri); // only interrupted downloads come back on their own
+                                    break;
+                                }
+
+                                Log.i(TAG, "Retrying in " + delay + "ms: " + uri);
+                                metrics.retried(uri);
                                 try {
-                                    fos.flush();
-                                    fos.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "exception closing file stream in finally", e);
+                                    Thread.sleep(delay);
+                                } catch (InterruptedException e) {
+                                    result = DownloadMetrics.STOPPED;
+                                    break;
                                 }
+                            }
 
+                            if(registry.isCurrent(entry, run)){
+                                progressAggregator.finish(uri);
                             }
+                            metrics.ended(uri, result);
+                        }
+
+                        return uri + "\t" + responseCode + "\t" + responseMessage;
+                    } finally {
+                        if(registry.ended(entry, run)){
+                            downloadLimiters.remove(uri, limiter);
                         }
                     }
+                }
+            });
+    }
 
-                    //check to see if the service needs to stop
-                    synchronized (boundLockObject) {
-                        if(!isBound){//not currently bound, so see if it needs to stop
-                            cleanDownloadQueue();
-                            synchronized (currentLockObject){
-                                if(pendingTasks.isEmpty() || (pendingTasks.size() == 1 && pendingTasks.containsKey(uri))){
-                                    //no more tasks (other than this one) and is unbound, so stop self
-                                    uiHandler.post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            stopSelf();
-                                        }
-                                    });
-                                }
-                            }
+    /**
+     * Called by the scheduler once nothing is running or waiting. The check is repeated on the
+     * main thread since something could have been enqueued in between.
+     */
+    private void stopIfIdle(){
+        synchronized (boundLockObject) {
+            if(isBound){
+                return;
+            }
+        }
+
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (boundLockObject) {
+                    //no more tasks and is unbound, so stop self
+                    if(!isBound && dldScheduler.isIdle()){
+                        stopSelf();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reserve room for the rest of a download before anything's written. If it doesn't fit, the
+     * task is put back in the queue, held until checkHeldForSpace finds room for it.
+     * @return false if it was held, the task should return
+     */
+    private boolean admit(TaskRegistry.Entry entry, long length){
+        String uri = entry.getUri();
+        long needed = length - Math.max(0, FileUtils.getPartialLength(uri));
+        if(diskBudget.reserve(uri, needed, FileUtils.getUsableSpace())){
+            return true;
+        }
+
+        Log.w(TAG, describeSpace(needed) + ": " + uri);
+        if(!Thread.currentThread().isInterrupted()){ // cancelled while connecting, it's not coming back
+            spaceNeeded.put(uri, needed);
+            // marked before it's back in the queue so returning doesn't end it, unless it was paused meanwhile
+            if(entry.compareAndSetState(TaskRegistry.RUNNING, TaskRegistry.HELD)){
+                Future<String> held = dldScheduler.hold(uri);
+                if(held != null){
+                    entry.setFuture(held);
+                }
+            }
+            uiHandler.removeCallbacks(spaceCheck);
+            uiHandler.postDelayed(spaceCheck, SPACE_CHECK_INTERVAL);
+        }
+        return false;
+    }
+
+    /**
+     * Let held downloads go once there's room for them, and check again later if some still
+     * don't fit. Space only comes back when something outside the service deletes files,
+     * so this polls.
+     */
+    private void checkHeldForSpace(){
+        boolean waiting = false;
+        for(Map.Entry<String, Long> entry : spaceNeeded.entrySet()){
+            String uri = entry.getKey();
+            if(!dldScheduler.isHeld(uri)){
+                spaceNeeded.remove(uri); // cancelled
+                continue;
+            }
+
+            if(diskBudget.getAvailable(FileUtils.getUsableSpace()) >= entry.getValue()){
+                spaceNeeded.remove(uri);
+                TaskRegistry.Entry held = registry.get(uri);
+                if(held != null){
+                    held.compareAndSetState(TaskRegistry.HELD, TaskRegistry.QUEUED);
+                }
+                dldScheduler.releaseHeld(uri); // it reserves for itself when it starts
+            } else {
+                waiting = true;
+            }
+        }
+
+        if(waiting){
+            uiHandler.postDelayed(spaceCheck, SPACE_CHECK_INTERVAL);
+        }
+    }
+
+    private String describeSpace(long needed){
+        return "Waiting for space, needs " + Formatter.formatFileSize(this, needed)
+                + ", " + Formatter.formatFileSize(this, Math.max(0, diskBudget.getAvailable(FileUtils.getUsableSpace()))) + " free";
+    }
+
+    private void setConcurrency(int maxDownloads, int maxPerHost){
+        dldScheduler.setLimits(maxDownloads, maxPerHost);
+        prefs.edit()
+                .putInt(Constants.MAX_DOWNLOADS_KEY, dldScheduler.getMaxConcurrent())
+                .putInt(Constants.MAX_HOST_DOWNLOADS_KEY, dldScheduler.getMaxPerHost())
+                .apply();
+    }
+
+    private void setRateLimit(long bytesPerSec){
+        globalLimiter.setRate(bytesPerSec);
+        prefs.edit().putLong(Constants.RATE_LIMIT_KEY, globalLimiter.getRate()).apply();
+    }
+
+    /**
+     * Sets the cap for downloads queued from now on, the ones already queued keep theirs.
+     */
+    private void setDefaultDownloadRateLimit(long bytesPerSec){
+        downloadRateLimit = Math.max(BandwidthLimiter.UNLIMITED, bytesPerSec);
+        prefs.edit().putLong(Constants.DOWNLOAD_RATE_LIMIT_KEY, downloadRateLimit).apply();
+    }
+
+    /**
+     * Open a connection and wait for the response headers, timing each step for the metrics.
+     * @param validator sent as If-Range so a changed file comes back whole (200) instead of
+     *                  as a range of the new one, null to not send it
+     */
+    private HttpsURLConnection openRangeConnection(String uri, long from, long to, String validator) throws IOException {
+        HttpsURLConnection conn = HttpClient.open(uri + apiQuery, method.toString());
+        conn.setRequestProperty("Accept", "video/mp4;video/*");
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + (to > -1 ? String.valueOf(to) : ""));
+        if(validator != null){
+            conn.setRequestProperty("If-Range", validator);
+        }
+
+        long started = SystemClock.elapsedRealtime();
+        try {
+            conn.connect();
+            long connected = SystemClock.elapsedRealtime();
+            conn.getResponseCode();
+            metrics.connected(uri, connected - started, SystemClock.elapsedRealtime() - connected);
+        } catch (IOException e) {
+            HttpClient.abort(conn);
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * HEAD the uri for its length and validator.
+     * @return null if the server didn't give a length
+     */
+    private SizeIndex.Entry probeSize(String uri) throws IOException {
+        HttpsURLConnection conn = HttpClient.open(uri + apiQuery, "HEAD");
+
+        boolean answered = false;
+        try {
+            int code = conn.getResponseCode();
+            answered = true;
+            if(code != HttpsURLConnection.HTTP_OK){
+                return null;
+            }
+            long length = getContentLength(conn);
+            return (length < 0) ? null : new SizeIndex.Entry(length, getValidator(conn), System.currentTimeMillis());
+        } finally {
+            if(answered){
+                HttpClient.release(conn); // the body's empty, it goes straight back to the pool
+            } else {
+                HttpClient.abort(conn);
+            }
+        }
+    }
+
+    private static long getContentLength(HttpsURLConnection conn){
+        // check length with an if or else the annotation freaks out
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return conn.getContentLengthLong();
+        } else {
+            return conn.getContentLength();
+        }
+    }
+
+    /**
+     * @return the full length of the file from a 206's Content-Range, or -1 if it isn't there
+     */
+    private static long getTotalLength(HttpsURLConnection conn){
+        String range = conn.getHeaderField("Content-Range"); // bytes start-end/total
+        if(range != null){
+            int slash = range.lastIndexOf('/');
+            if(slash > -1){
+                try {
+                    return Long.parseLong(range.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    // total is "*", unknown
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the response's strong ETag, or its Last-Modified if it doesn't have one. Weak
+     * ETags aren't allowed in If-Range. Null if neither is there.
+     */
+    private static String getValidator(HttpsURLConnection conn){
+        String etag = conn.getHeaderField("ETag");
+        if(etag != null && !etag.startsWith("W/")){
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * @param validator what the partial was started with, checked against the response as well
+     *                  in case the server ignored If-Range. Null to skip the check
+     */
+    private static boolean isExpectedRange(HttpsURLConnection conn, long from, String validator) throws IOException {
+        if(conn.getResponseCode() != 206){
+            return false;
+        }
+        String range = conn.getHeaderField("Content-Range");
+        if(range == null || !range.trim().startsWith("bytes " + from + "-")){
+            return false;
+        }
+
+        String current = getValidator(conn);
+        return validator == null || current == null || validator.equals(current);
+    }
+
+    private void discardPartial(String uri){
+        FileUtils.deletePartial(uri);
+    }
+
+    private void finishDownload(String uri){
+        if(!FileUtils.publish(uri)){
+            Log.e(TAG, "Couldn't publish finished download: " + uri);
+        }
+    }
+
+    private static void saveChecksum(String uri, long crc, long length){
+        try {
+            FileUtils.saveChecksum(uri, crc, length);
+        } catch (IOException e) {
+            // the file's fine, it just can't be verified later
+            Log.e(TAG, "Couldn't save checksum: " + uri, e);
+        }
+    }
+
+    /**
+     * Hash whatever chunks of the finished partial weren't seen whole while it downloaded, and
+     * save the map next to it.
+     */
+    private static void saveChunkMap(String uri, ChunkMap chunks){
+        FileChannel channel = null;
+        try {
+            channel = FileUtils.openForRead(uri, true);
+            chunks.fill(channel);
+            FileUtils.saveChunkMap(uri, chunks);
+        } catch (IOException e) {
+            // the file's fine, it just can't be repaired later
+            Log.e(TAG, "Couldn't save chunk map: " + uri, e);
+        } finally {
+            if(channel != null){
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing partial", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the download finished and was renamed
+     */
+    private boolean downloadSingleStream(String uri, HttpsURLConnection conn, long at, BandwidthLimiter limiter) throws IOException {
+        StorageBackend.Handle partial = null;
+
+        try {
+            conn.getInputStream(); // a 404 throws here, before the partial is touched
+
+            //if the response code is 206, it's sending a partial, so add on to it, otherwise start over
+            partial = FileUtils.openPartial(uri, conn.getResponseCode() != 206);
+
+            if(conn.getResponseCode() != 206){
+                at = 0; // server sent the whole thing, starting over
+            }
+
+            long len = getContentLength(conn); // -1 same as unknown
+
+            if(at > len){
+                //TODO let the app/user know so they can fix this (delete the file?)
+                if(len == -1){ //handle case where content length can't be determined
+                    Log.e(TAG, "Content Length couldn't be determined");
+                } else {
+                    throw new IOException("File size bigger than requested content");
+                }
+
+            }
+
+            if(len != -1){
+                len += at;//if it's resuming, len will only be the length of the download needed, so add the current progress
+            }
+
+            final RangeChecksum checksum;
+            if(at > 0){
+                // nothing was hashing the bytes we're appending to, so read them in once
+                checksum = RangeChecksum.read(partial.getReadChannel(), 0, at);
+            } else {
+                checksum = new RangeChecksum();
+            }
+
+            ProgressAggregator.Tracker progress = progressAggregator.track(uri, at, len);
+
+            at += copyToChannel(uri, conn, partial.getWriteChannel(), at, -1, progress, limiter, new FlushListener() {
+                @Override
+                public void onFlushed(ByteBuffer written) {
+                    checksum.update(written);
+                }
+            });
+
+            partial.close();
+            partial = null;
+
+            if(at == len || len == -1){ // only rename if we got the whole file, or we don't know the content length
+                finishDownload(uri);
+                saveChecksum(uri, checksum.getValue(), at);
+                return true;
+            }
+            return false;
+
+        } finally {
+            if(partial != null){
+                try {
+                    partial.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing partial in finally", e);
+                }
+
+            }
+        }
+    }
+
+    private static int countIncomplete(PartialState state){
+        int count = 0;
+        for(PartialState.Segment seg : state.getSegments()){
+            if(!seg.isComplete()){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Download every incomplete range of the state in parallel, each on its own connection.
+     * Ranges past the connections it was given wait for one of the others to finish.
+     * @param firstConn an already open connection for the first incomplete range, can be null
+     * @param connections most ranges to fetch at once, what the scheduler allowed for the host
+     */
+    private void downloadSegmented(final String uri, HttpsURLConnection firstConn, final PartialState state, final ChunkMap chunks, final BandwidthLimiter limiter, int connections) throws IOException {
+        StorageBackend.Handle partial = FileUtils.openPartial(uri, false);
+        try {
+            // reserve the whole file up front so a full disk shows up now and not halfway through
+            if(FileUtils.preallocate(partial, state.getLength())){
+                diskBudget.release(uri); // it's really taken now, free space already counts it
+            }
+            state.readChecksums(partial.getReadChannel());
+        } finally {
+            partial.close();
+        }
+
+        final ProgressAggregator.Tracker progress = progressAggregator.track(uri, state.getDone(), state.getLength());
+
+        // fair, so waiting ranges go in file order and a player gets the start first
+        final Semaphore slots = new Semaphore(Math.max(1, connections), true);
+        List<SegmentTask> tasks = new ArrayList<>();
+        PartialState.Segment first = null;
+        for(final PartialState.Segment seg : state.getSegments()){
+            if(seg.isComplete()){
+                continue;
+            }
+            if(first == null && firstConn != null){
+                first = seg; // runs on this thread over the connection we already have
+                slots.acquireUninterruptibly(); // there's always one, nothing else has started
+                continue;
+            }
+            SegmentTask task = new SegmentTask(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        slots.acquire();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Download cancelled: " + uri);
+                    }
+                    try {
+                        HttpsURLConnection conn = openRangeConnection(uri, seg.pos, seg.end - 1, state.getValidator());
+                        if(!isExpectedRange(conn, seg.pos, state.getValidator())){
+                            // changed on the server mid download, the next attempt starts over
+                            HttpClient.abort(conn);
+                            throw new IOException("Range not honored or file changed for segment at " + seg.pos + ": " + conn.getResponseCode());
                         }
+                        downloadSegment(uri, conn, state, seg, chunks, progress, limiter);
+                        return null;
+                    } finally {
+                        slots.release();
                     }
+                }
+            });
+            segmentExec.execute(task);
+            tasks.add(task);
+        }
 
+        if(first == null){
+            HttpClient.abort(firstConn); // nothing left for it to fetch
+        }
 
+        IOException failure = null;
+        try {
+            if(first != null){
+                downloadSegment(uri, firstConn, state, first, chunks, progress, limiter);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if(first != null){
+                slots.release();
+            }
+        }
 
-                    return uri + "\t" + responseCode + "\t" + responseMessage;
+        boolean interrupted = false;
+        for(SegmentTask task : tasks){
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if(failure == null){
+                    failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+
+        if(interrupted){
+            for(SegmentTask task : tasks){
+                task.cancel(true);
+            }
+            // a cancelled range can still be stuck in a read, it has to be done writing and
+            // saving the state before this returns or it could write over a resumed run's
+            for(SegmentTask task : tasks){
+                task.awaitReturn();
+            }
+            Thread.currentThread().interrupt(); // still cancelled for the caller
+            failure = new InterruptedIOException("Download cancelled: " + uri);
+        }
+
+        if(failure != null){
+            // keep what we got so the next try only fetches what's missing
+            try {
+                FileUtils.savePartialState(uri, state);
+                FileUtils.saveChunkMap(uri, chunks);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't save partial state: " + uri, e);
+            }
+            throw failure;
+        }
+    }
+
+    private void downloadSegment(final String uri, HttpsURLConnection conn, final PartialState state, final PartialState.Segment seg, ChunkMap chunks, ProgressAggregator.Tracker progress, BandwidthLimiter limiter) throws IOException {
+        StorageBackend.Handle partial = null;
+
+        try {
+            conn.getInputStream(); // fail on a bad response before opening the file
+            partial = FileUtils.openPartial(uri, false); // a handle per segment, they write at their own offsets
+
+            final ChunkMap.Hasher hasher = chunks.hasher(seg.pos);
+            copyToChannel(uri, conn, partial.getWriteChannel(), seg.pos, seg.end - seg.pos, progress, limiter, new FlushListener() {
+                private long unsaved = 0;
+
+                @Override
+                public void onFlushed(ByteBuffer written) throws IOException {
+                    int bytes = written.remaining();
+                    seg.getChecksum().update(written);
+                    hasher.update(written);
+                    // only move the range along once the bytes are actually in the file
+                    state.advance(seg, bytes);
+
+                    if(state.shouldYield(seg)){
+                        // a player is waiting on another range, leave it the bandwidth for a bit
+                        try {
+                            Thread.sleep(STREAM_YIELD_MS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt(); // still cancelled for whoever checks next
+                            throw new InterruptedIOException("Download cancelled: " + uri);
+                        }
+                    }
+
+                    unsaved += bytes;
+                    if(unsaved >= STATE_SAVE_INTERVAL){
+                        unsaved = 0;
+                        FileUtils.savePartialState(uri, state);
+                    }
                 }
             });
-//        }
+
+            if(!seg.isComplete()){
+                throw new IOException("Connection closed before end of segment at " + seg.pos);
+            }
+
+        } finally {
+            // a finished range has read its response to the end, its connection can be reused
+            if(seg.isComplete()){
+                HttpClient.release(conn);
+            } else {
+                HttpClient.abort(conn);
+            }
+            if(partial != null){
+                try {
+                    partial.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing partial in finally", e);
+                }
+            }
+        }
     }
 
-    private boolean stopDownloadTask(String uri){
+    /**
+     * Copy from a download's stream into the file through a pooled direct buffer. The buffer is
+     * only written out when full, and resized between writes to suit the measured rate. Reads
+     * are watched, and a connection that stops sending is closed and fails with a timeout.
+     * @param position where in the file to start writing, or -1 to write at the channel's position
+     * @param limit most bytes to copy, or -1 to copy to the end of the stream
+     * @param listener given the bytes after each write, can be null
+     * @return number of bytes written to the file
+     */
+    private long copyToChannel(String uri, HttpsURLConnection conn, FileChannel out, long position, long limit,
+                               ProgressAggregator.Tracker progress, BandwidthLimiter limiter, FlushListener listener) throws IOException {
+        ReadableByteChannel src = Channels.newChannel(conn.getInputStream());
+        StallWatchdog.Watch watch = stallWatchdog.watch(conn);
+        ByteBuffer buf = BufferPool.acquire(BufferPool.DEFAULT_SIZE);
+        long copied = 0;
+        long started = SystemClock.elapsedRealtime();
+
+        try {
+            while (limit < 0 || copied + buf.position() < limit) {
+                if(Thread.currentThread().isInterrupted()){
+                    throw new InterruptedIOException("Download cancelled: " + uri);
+                }
+
+                if(!buf.hasRemaining()){
+                    copied += flushBuffer(buf, out, position, copied, listener);
+
+                    long elapsed = SystemClock.elapsedRealtime() - started;
+                    int size = BufferPool.sizeFor(elapsed > 0 ? copied * 1000 / elapsed : 0);
+                    if(size != buf.capacity()){
+                        BufferPool.release(buf);
+                        buf = BufferPool.acquire(size);
+                    }
+                }
+
+                if(limit >= 0){
+                    // don't read past the end of the range
+                    buf.limit((int) Math.min(buf.capacity(), limit - copied));
+                }
+
+                int read;
+                watch.beginRead();
+                try {
+                    read = src.read(buf);
+                } catch (IOException e) {
+                    if(watch.isStalled()){
+                        throw new SocketTimeoutException("No data for " + stallWatchdog.getTimeout() + "ms: " + uri);
+                    }
+                    throw e;
+                } finally {
+                    watch.endRead();
+                }
+                if(read < 0){
+                    if(watch.isStalled()){
+                        // closed under a read that then reported end of stream
+                        throw new SocketTimeoutException("No data for " + stallWatchdog.getTimeout() + "ms: " + uri);
+                    }
+                    break;
+                }
+                if(read > 0 && copied == 0 && buf.position() == read){
+                    metrics.firstByte(uri);
+                }
+                progress.advance(read);
+                limiter.acquire(read);
+            }
+
+            copied += flushBuffer(buf, out, position, copied, listener);
 
-        synchronized (currentLockObject){
-            if(pendingTasks.containsKey(uri)){
-                Future<String> task = pendingTasks.get(uri);
-                if(task != null && !(task.isDone() || task.isCancelled())){
-                    return task.cancel(true);
+        } finally {
+            if(buf.position() > 0){
+                // something went wrong mid buffer, keep what we already have
+                try {
+                    copied += flushBuffer(buf, out, position, copied, listener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't write buffered bytes: " + uri, e);
                 }
             }
+            BufferPool.release(buf);
+            watch.close();
+            metrics.transferred(uri, copied);
         }
 
-        cleanDownloadQueue();
+        return copied;
+    }
+
+    private static long flushBuffer(ByteBuffer buf, FileChannel out, long position, long copied, FlushListener listener) throws IOException {
+        buf.flip();
+        long written = 0;
+        try {
+            while(buf.hasRemaining()){
+                written += (position < 0) ? out.write(buf) : out.write(buf, position + copied + written);
+            }
+
+            if(written > 0 && listener != null){
+                buf.flip(); // back over what was just written
+                listener.onFlushed(buf);
+            }
+        } finally {
+            // a failed write leaves nothing to retry, the range picks up from its last offset
+            buf.clear();
+        }
+        return written;
+    }
 
+    /**
+     * The qualities an auto download can pick from, and which one it's on.
+     */
+    private static class AutoChoice {
+        final String[] uris; // best first
+        final long[] sizes;
+        final int chosen;
+
+        AutoChoice(String[] uris, long[] sizes, int chosen){
+            this.uris = uris;
+            this.sizes = sizes;
+            this.chosen = chosen;
+        }
+    }
+
+    /**
+     * A range running on segmentExec. Once it's cancelled get() returns straight away, while
+     * the thread may not be done with the file yet, so awaitReturn waits for that.
+     */
+    private static class SegmentTask extends FutureTask<Void> {
+
+        private final CountDownLatch returned = new CountDownLatch(1);
+
+        SegmentTask(Callable<Void> callable){
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            // a task cancelled before it started still gets run, and returns right away
+            try {
+                super.run();
+            } finally {
+                returned.countDown();
+            }
+        }
+
+        /**
+         * Wait for the thread to be done with it, through interrupts. A stuck read ends at the
+         * latest when the stall watchdog closes its connection.
+         */
+        void awaitReturn(){
+            boolean interrupted = false;
+            while(true){
+                try {
+                    returned.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private interface FlushListener {
+        /**
+         * @param written exactly the bytes that went into the file, read but don't move it
+         */
+        void onFlushed(ByteBuffer written) throws IOException;
+    }
+
+    private boolean stopDownloadTask(String uri){
+        TaskRegistry.Entry entry = registry.get(uri);
+        if(entry == null){
+            return false;
+        }
+
+        Future<String> task = entry.getFuture();
+        if(task == null || task.isDone()){
+            return false;
+        }
+
+        // the user stopped it, so it shouldn't come back on the next start
+        journal.removed(uri);
+        if(registry.remove(entry)){
+            downloadLimiters.remove(uri);
+        }
+        return task.cancel(true);
+    }
+
+    private boolean pauseDownloadTask(String uri){
+        TaskRegistry.Entry entry = registry.get(uri);
+        if(entry == null){
+            return false;
+        }
+
+        // marked first, a running task that's stopped by the pause mustn't end its entry
+        int was = entry.getAndSetState(TaskRegistry.PAUSED);
+        Future<String> future = dldScheduler.pause(uri);
+        if(future == null){
+            Future<String> old = entry.getFuture();
+            if(old != null && old.isDone()){
+                registry.remove(entry); // it finished before it could be paused
+            } else {
+                entry.compareAndSetState(TaskRegistry.PAUSED, was);
+            }
+            return false;
+        }
+
+        // pausing a running task swaps in a new future for it
+        entry.setFuture(future);
+        journal.paused(uri, true);
+        return true;
+    }
+
+    private boolean resumeDownloadTask(String uri){
+        TaskRegistry.Entry entry = registry.get(uri);
+        if(entry == null || !entry.compareAndSetState(TaskRegistry.PAUSED, TaskRegistry.QUEUED)){
+            return false;
+        }
+
+        if(dldScheduler.resume(uri)){
+            if(dldScheduler.isHeld(uri)){
+                entry.compareAndSetState(TaskRegistry.QUEUED, TaskRegistry.HELD); // paused while waiting for space
+            }
+            journal.paused(uri, false);
+            return true;
+        }
+        entry.compareAndSetState(TaskRegistry.QUEUED, TaskRegistry.PAUSED);
         return false;
     }
 
-    private boolean hasDownloadTask(String uri){
-        cleanDownloadQueue();
+    /**
+     * Enqueue the best of the choices that finishes in time at the measured throughput.
+     * @param uris the choices, best first
+     * @param sizes bytes of each choice, -1 where it isn't known
+     * @return the uri enqueued, one of them if it was already pending, or null
+     */
+    private String enqueueAuto(String[] uris, long[] sizes){
+        if(uris.length == 0 || sizes.length != uris.length){
+            return null;
+        }
+        for(String uri : uris){
+            if(registry.contains(uri)){
+                return uri;
+            }
+        }
 
-        synchronized (currentLockObject) {
-            return pendingTasks.containsKey(uri);
+        sizes = getKnownSizes(uris, sizes);
+        int chosen = qualityPicker.pick(sizes);
+        if(!enqueueDownload(uris[chosen], Constants.DEFAULT_PRIORITY)){
+            return null;
         }
+        autoChoices.put(uris[chosen], new AutoChoice(uris, sizes, chosen));
+        return uris[chosen];
     }
 
-    private boolean cleanDownloadQueue(){
-        List<String> toRemove = new ArrayList<>();
+    /**
+     * @return the sizes with any that are in the index replaced by the real thing
+     */
+    private long[] getKnownSizes(String[] uris, long[] sizes){
+        long[] known = sizes.clone();
+        for(int i = 0; i < uris.length && i < known.length; i++){
+            long length = sizeIndex.getLength(uris[i]);
+            if(length > -1){
+                known[i] = length;
+            }
+        }
+        return known;
+    }
 
-        synchronized (currentLockObject) {
-            for (String futureKey : pendingTasks.keySet()){
-                Future<String> future = pendingTasks.get(futureKey);
-                if(future != null && (future.isCancelled() || future.isDone())){
+    /**
+     * Step auto downloads that haven't started yet down to a lower quality if the throughput
+     * has dropped since they were picked. Once one starts it keeps its quality, and nothing is
+     * ever stepped back up.
+     */
+    private void checkAutoChoices(){
+        for(Map.Entry<String, AutoChoice> entry : autoChoices.entrySet()){
+            String uri = entry.getKey();
+            AutoChoice choice = entry.getValue();
+
+            int state = registry.getState(uri);
+            if(state == TaskRegistry.ENDED){
+                autoChoices.remove(uri, choice); // done or cancelled
+                continue;
+            }
+            if(state != TaskRegistry.QUEUED){
+                continue;
+            }
+
+            int pick = qualityPicker.pick(choice.sizes);
+            if(pick <= choice.chosen || registry.contains(choice.uris[pick])){
+                continue;
+            }
 
-                    toRemove.add(futureKey);
+            String lower = choice.uris[pick];
+            Log.i(TAG, "Throughput down to " + qualityPicker.getRate() + " B/s, switching " + uri + " to " + lower);
+            if(stopDownloadTask(uri)){
+                autoChoices.remove(uri, choice);
+                if(enqueueDownload(lower, Constants.DEFAULT_PRIORITY)){
+                    autoChoices.put(lower, new AutoChoice(choice.uris, choice.sizes, pick));
                 }
             }
+        }
+    }
+
+    private boolean enqueueDownload(String uri, int priority){
+        return enqueueDownload(uri, priority, false);
+    }
+
+    /**
+     * @param paused enqueue it paused, like one from the journal that was paused before
+     */
+    private boolean enqueueDownload(String uri, int priority, boolean paused){
+        TaskRegistry.Entry entry = registry.register(uri);
+        if(entry == null){
+            return false; // already pending
+        }
+        if(paused){
+            entry.setState(TaskRegistry.PAUSED);
+        }
+
+        Future<String> future = startDownloadTask(entry, priority, paused);
+        if(future == null){
+            registry.remove(entry);
+            return false;
+        }
+
+        entry.setFutureIfUnset(future); // a hold could already have swapped in its own
+        journal.enqueued(uri, priority);
+        return true;
+    }
+
+    /**
+     * Check a finished download against its chunk map in the background. If chunks fail it goes
+     * back to being a partial with only those ranges left to fetch, and is enqueued like any
+     * other. The result is broadcast with REPAIR_INTENT_ACTION.
+     * @return false if it isn't downloaded, it's already being checked or downloaded, or it has
+     * no chunk map (finished before they were kept, or downloaded as one stream)
+     */
+    private boolean repairDownload(final String uri){
+        if(hasDownloadTask(uri) || !FileUtils.checkIfDownloaded(uri)){
+            return false;
+        }
+        final ChunkMap chunks = FileUtils.loadChunkMap(uri);
+        if(chunks == null || !verifying.add(uri)){
+            return false;
+        }
+
+        segmentExec.execute(new Runnable() {
+            @Override
+            public void run() {
+                long bad = -1;
+                try {
+                    bad = verifyDownload(uri, chunks);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't check download: " + uri, e);
+                } finally {
+                    verifying.remove(uri);
+                }
 
-            for(String futureKey : toRemove){
-                pendingTasks.remove(futureKey);
+                sendBroadcast(new Intent()
+                        .setAction(Constants.REPAIR_INTENT_ACTION)
+                        .putExtra(Constants.REPAIR_URL_KEY, uri)
+                        .putExtra(Constants.REPAIR_BAD_KEY, bad)
+                );
             }
+        });
+        return true;
+    }
+
+    /**
+     * @return bytes in chunks that failed, which are now queued to be fetched again
+     */
+    private long verifyDownload(String uri, ChunkMap chunks) throws IOException {
+        List<long[]> bad;
+        FileChannel channel = FileUtils.openForRead(uri, false);
+        try {
+            bad = chunks.verify(channel);
+        } finally {
+            channel.close();
+        }
+        if(bad.isEmpty()){
+            return 0;
+        }
 
-            return pendingTasks.isEmpty();
+        long badBytes = 0;
+        for(long[] range : bad){
+            badBytes += range[1] - range[0];
+            chunks.invalidate(range[0], range[1]);
         }
+        Log.w(TAG, "Fetching " + bad.size() + " bad ranges, " + badBytes + " bytes, again: " + uri);
+
+        PartialState state = PartialState.repair(chunks, bad);
+        if(!FileUtils.unpublish(uri)){
+            throw new IOException("Couldn't make download a partial again: " + uri);
+        }
+        try {
+            FileUtils.savePartialState(uri, state);
+            FileUtils.saveChunkMap(uri, chunks);
+        } catch (IOException e) {
+            // a partial without its state would be taken for a contiguous one, put it back
+            FileUtils.deletePartialState(uri);
+            finishDownload(uri);
+            throw e;
+        }
+
+        enqueueDownload(uri, Constants.DEFAULT_PRIORITY);
+        return badBytes;
     }
 
-    @Override
-    public void onDestroy() {
-        synchronized (currentLockObject) {
-            for (Future<String> future : pendingTasks.values()){
-                future.cancel(true);
+    private DownloadStatus getDownloadStatus(String uri){
+        ProgressAggregator.Tracker tracker = progressAggregator.get(uri);
+
+        int state;
+        long done = -1; // partial progress, looked up at most once
+        switch (registry.getState(uri)){
+            case TaskRegistry.RUNNING:
+                state = DownloadStatus.RUNNING;
+                break;
+            case TaskRegistry.PAUSED:
+                state = DownloadStatus.PAUSED;
+                break;
+            case TaskRegistry.HELD:
+                state = DownloadStatus.HELD;
+                break;
+            case TaskRegistry.QUEUED:
+                state = DownloadStatus.QUEUED;
+                break;
+            default:
+                if(FileUtils.checkIfDownloaded(uri)){
+                    state = DownloadStatus.DOWNLOADED;
+                } else {
+                    done = getPartialDone(uri);
+                    state = (done > -1) ? DownloadStatus.PARTIAL : DownloadStatus.NONE;
+                }
+                break;
+        }
+
+        if(tracker != null && state == DownloadStatus.RUNNING){
+            return new DownloadStatus(uri, state, tracker.getDone(), tracker.getTotal(), tracker.getRate());
+        }
+        if(state == DownloadStatus.DOWNLOADED){
+            long length = FileUtils.getDownloadedLength(uri);
+            return new DownloadStatus(uri, state, length, length, 0);
+        }
+        String reason = null;
+        Long needed = spaceNeeded.get(uri);
+        if(state == DownloadStatus.HELD && needed != null){
+            reason = describeSpace(needed);
+        }
+
+        if(state != DownloadStatus.PARTIAL && state != DownloadStatus.NONE){
+            done = getPartialDone(uri);
+        }
+        return new DownloadStatus(uri, state, done, sizeIndex.getLength(uri), 0, reason);
+    }
+
+    /**
+     * @return bytes done of a download's partial, -1 if there isn't one. A segmented download
+     * in progress goes by its live state, anything else by what FileUtils last saw saved.
+     */
+    private long getPartialDone(String uri){
+        PartialState live = liveStates.get(uri);
+        if(live != null){
+            return live.getDone();
+        }
+        return FileUtils.checkIfPartialDownloaded(uri);
+    }
+
+    /**
+     * Open a download for the stream server, finished or not. A partial can only be streamed
+     * once it has a state, the state is what says which of its bytes are real and how long
+     * it'll be.
+     */
+    private StreamServer.Source openStream(String uri) throws IOException {
+        if(FileUtils.checkIfDownloaded(uri)){
+            FileChannel channel = FileUtils.openForRead(uri, false);
+            return new StreamSource(uri, channel, channel.size(), null);
+        }
+
+        PartialState state = liveStates.get(uri);
+        if(state == null){
+            state = FileUtils.loadPartialState(uri);
+        }
+        if(state == null){
+            throw new FileNotFoundException("Nothing to stream for " + uri);
+        }
+        return new StreamSource(uri, FileUtils.openForRead(uri, true), state.getLength(), state);
+    }
+
+    private class StreamSource implements StreamServer.Source {
+
+        private final String uri;
+        private final FileChannel channel;
+        private final long length;
+        // null once everything's known to be written
+        private volatile PartialState state;
+
+        StreamSource(String uri, FileChannel channel, long length, PartialState state){
+            this.uri = uri;
+            this.channel = channel;
+            this.length = length;
+            this.state = state;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public long awaitAvailable(long offset, long timeoutMs) throws InterruptedException {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+            while(state != null){
+                // the download may start, restart with a new state or finish while we wait
+                PartialState live = liveStates.get(uri);
+                if(live != null){
+                    state = live;
+                } else if(FileUtils.checkIfDownloaded(uri)){
+                    state = null;
+                    break;
+                }
+
+                long left = deadline - SystemClock.elapsedRealtime();
+                long end = state.awaitWritten(offset, Math.max(0, Math.min(left, STREAM_POLL_MS)));
+                if(end > offset || left <= 0){
+                    return end;
+                }
             }
-            pendingTasks.clear();
+            return length;
+        }
+
+        @Override
+        public void want(long offset) {
+            PartialState current = state;
+            if(current != null){
+                current.want(offset);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
         }
-        dldExec.shutdownNow();
+    }
+
+    private boolean hasDownloadTask(String uri){
+        return registry.contains(uri);
+    }
+
+    @Override
+    public void onDestroy() {
+        prefs.edit().putLong(Constants.THROUGHPUT_KEY, qualityPicker.getRate()).apply();
+        sizeProber.shutdown();
+        sizeIndex.save();
+        streamServer.stop();
+        registry.cancelAll();
+        dldScheduler.shutdownNow();
+        segmentExec.shutdownNow();
+        progressAggregator.shutdown();
+        stallWatchdog.shutdown();
+        uiHandler.removeCallbacks(spaceCheck);
+        journal.close();
     }
 
 
@@ -381,21 +1592,12 @@ public class DownloadService extends Service {
 
         @Override
         public boolean enqueue(String uri) throws RemoteException {
-            boolean success = true;
-            synchronized(currentLockObject){
-                if(!pendingTasks.containsKey(uri)){
-                    Future<String> future = startDownloadTask(uri);
-                    if(future != null){
-                        pendingTasks.put(uri, future);
-                    } else {
-                        success = false;
-                    }
-                } else {
-                    success = false;
-                }
-            }
+            return enqueueWithPriority(uri, Constants.DEFAULT_PRIORITY);
+        }
 
-            return success;
+        @Override
+        public boolean enqueueWithPriority(String uri, int priority) throws RemoteException {
+            return enqueueDownload(uri, priority);
         }
 
         @Override
@@ -407,6 +1609,169 @@ public class DownloadService extends Service {
         public boolean isQueued(String uri) throws RemoteException {
             return hasDownloadTask(uri);
         }
+
+        @Override
+        public boolean setPriority(String uri, int priority) throws RemoteException {
+            if(dldScheduler.setPriority(uri, priority)){
+                journal.enqueued(uri, priority);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean moveToFront(String uri) throws RemoteException {
+            return dldScheduler.moveToFront(uri);
+        }
+
+        @Override
+        public boolean pause(String uri) throws RemoteException {
+            return pauseDownloadTask(uri);
+        }
+
+        @Override
+        public boolean resume(String uri) throws RemoteException {
+            return resumeDownloadTask(uri);
+        }
+
+        @Override
+        public boolean isPaused(String uri) throws RemoteException {
+            return registry.getState(uri) == TaskRegistry.PAUSED;
+        }
+
+        @Override
+        public void setRateLimit(long bytesPerSec) throws RemoteException {
+            DownloadService.this.setRateLimit(bytesPerSec);
+        }
+
+        @Override
+        public long getRateLimit() throws RemoteException {
+            return globalLimiter.getRate();
+        }
+
+        @Override
+        public void setDefaultDownloadRateLimit(long bytesPerSec) throws RemoteException {
+            DownloadService.this.setDefaultDownloadRateLimit(bytesPerSec);
+        }
+
+        @Override
+        public boolean setDownloadRateLimit(String uri, long bytesPerSec) throws RemoteException {
+            BandwidthLimiter limiter = downloadLimiters.get(uri);
+            if(limiter != null){
+                limiter.setRate(bytesPerSec);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void setConcurrency(int maxDownloads, int maxPerHost) throws RemoteException {
+            DownloadService.this.setConcurrency(maxDownloads, maxPerHost);
+        }
+
+        @Override
+        public int getMaxDownloads() throws RemoteException {
+            return dldScheduler.getMaxConcurrent();
+        }
+
+        @Override
+        public int getMaxDownloadsPerHost() throws RemoteException {
+            return dldScheduler.getMaxPerHost();
+        }
+
+        @Override
+        public boolean[] enqueueAll(String[] uris) throws RemoteException {
+            boolean[] results = new boolean[uris.length];
+            for(int i = 0; i < uris.length; i++){
+                results[i] = enqueueDownload(uris[i], Constants.DEFAULT_PRIORITY);
+            }
+            return results;
+        }
+
+        @Override
+        public boolean[] cancelAll(String[] uris) throws RemoteException {
+            boolean[] results = new boolean[uris.length];
+            for(int i = 0; i < uris.length; i++){
+                results[i] = stopDownloadTask(uris[i]);
+            }
+            return results;
+        }
+
+        @Override
+        public DownloadStatus[] getStatus(String[] uris) throws RemoteException {
+            DownloadStatus[] statuses = new DownloadStatus[uris.length];
+            for(int i = 0; i < uris.length; i++){
+                statuses[i] = getDownloadStatus(uris[i]);
+            }
+            return statuses;
+        }
+
+        @Override
+        public String enqueueAuto(String[] uris, long[] sizes) throws RemoteException {
+            return DownloadService.this.enqueueAuto(uris, sizes);
+        }
+
+        @Override
+        public int pickAuto(long[] sizes) throws RemoteException {
+            return qualityPicker.pick(sizes);
+        }
+
+        @Override
+        public long[] probeSizes(String[] uris) throws RemoteException {
+            long[] lengths = new long[uris.length];
+            for(int i = 0; i < uris.length; i++){
+                lengths[i] = sizeIndex.getLength(uris[i]);
+            }
+            sizeProber.probe(uris);
+            return lengths;
+        }
+
+        @Override
+        public boolean repair(String uri) throws RemoteException {
+            return repairDownload(uri);
+        }
+
+        @Override
+        public String getStreamUrl(String uri) throws RemoteException {
+            if(!FileUtils.checkIfDownloaded(uri) && liveStates.get(uri) == null && FileUtils.loadPartialState(uri) == null){
+                return null; // nothing with a known length to stream yet
+            }
+            try {
+                return streamServer.getUrl(uri);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't start stream server", e);
+                return null;
+            }
+        }
+
+        @Override
+        public long getThroughput() throws RemoteException {
+            return qualityPicker.getRate();
+        }
+
+        @Override
+        public String getMetrics(String uri) throws RemoteException {
+            return metrics.get(uri);
+        }
+
+        @Override
+        public String getAllMetrics() throws RemoteException {
+            return metrics.getAll();
+        }
+
+        @Override
+        public String dumpMetrics() throws RemoteException {
+            File dir = getExternalFilesDir(null);
+            if(dir == null){
+                dir = getFilesDir(); // external storage isn't mounted
+            }
+            try {
+                return metrics.dump(dir).getPath();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't dump metrics", e);
+                return null;
+            }
+        }
     };
 
 
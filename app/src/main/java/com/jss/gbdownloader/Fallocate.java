@@ -0,0 +1,57 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * fallocate for partials, kept out of FileUtils. ErrnoException is API 21, and a class that
+ * catches it fails verification as a whole on older versions, version check or not. Only
+ * touch this behind a check for LOLLIPOP.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+class Fallocate {
+
+    /**
+     * @return true if the blocks are allocated, false if the filesystem doesn't do fallocate
+     * (fuse, sdcardfs)
+     * @throws IOException if there isn't room for it
+     */
+    static boolean allocate(FileDescriptor fd, long length) throws IOException {
+        try {
+            Os.posix_fallocate(fd, 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            if(e.errno == OsConstants.ENOSPC){
+                throw new IOException("Not enough space for partial", e);
+            }
+            return false;
+        }
+    }
+
+}
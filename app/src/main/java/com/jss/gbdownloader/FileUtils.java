@@ -19,79 +19,258 @@
 
 package com.jss.gbdownloader;
 
+import android.content.Context;
+import android.net.Uri;
 import android.os.Build;
-import android.os.Environment;
-import android.util.Pair;
+
+import com.jss.gbdownloader.storage.FileBackend;
+import com.jss.gbdownloader.storage.MediaStoreBackend;
+import com.jss.gbdownloader.storage.StorageBackend;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileUtils {
 
+    private static StorageBackend backend;
+
+    // bytes done in each partial with a state, as of the last time it was saved or loaded
+    private static final ConcurrentHashMap<String, Long> partialDone = new ConcurrentHashMap<>();
+
+    /**
+     * Pick where downloads go, plain files before scoped storage and the MediaStore after.
+     * Call before anything else in here, from every component that uses it.
+     */
+    public static synchronized void init(Context context){
+        if(backend == null){
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
+                backend = new MediaStoreBackend(context);
+            } else {
+                backend = new FileBackend();
+            }
+        }
+    }
+
+    public static StorageBackend getBackend(){
+        return backend;
+    }
+
     //region String versions
 
     public static boolean checkIfDownloaded(String uri){
-        File file = getFileForUrl(uri);
-        return file != null && file.exists();
+        return backend.length(getNameForUrl(uri)) > -1;
+    }
+
+    /**
+     * @return length of the finished download, or -1 if there isn't one
+     */
+    public static long getDownloadedLength(String uri){
+        return backend.length(getNameForUrl(uri));
     }
 
+    /**
+     * @return bytes downloaded so far, or -1 if there's no partial. Partials with a known length
+     * are preallocated, so this comes from the saved state rather than the size of the file.
+     * The state is only parsed the first time, after that it's what was last saved or loaded
+     * here. Doesn't change anything on disk, a stale or bad state is loadPartialState's to clean up.
+     */
     public static long checkIfPartialDownloaded(String uri){
-        long len = -1;
-        File file = getPartialFileForUrl(uri);
-        if(file != null &&
-                file.exists() &&
-                file.canWrite()){
-            len = file.length();
+        long len = backend.partialLength(getNameForUrl(uri));
+        if(len < 0){
+            return -1;
+        }
 
+        Long done = partialDone.get(uri);
+        if(done == null){
+            File stateFile = getPartialStateFileForUrl(uri);
+            if(!stateFile.exists()){
+                return len; // contiguous partial, its length is what's done
+            }
+            PartialState state = PartialState.load(stateFile);
+            done = (state == null) ? 0 : state.getDone(); // can't tell how much of it is real
+            partialDone.put(uri, done);
         }
-        return len;
+        return done;
     }
 
-    public static Pair<Long, FileOutputStream> getFileOutputStreamForUrl(String uri, boolean append) throws IOException {
-        FileOutputStream fos = null;
-        long len = 0;
+    /**
+     * @return length of the partial on disk, preallocated or not, or -1 if there isn't one
+     */
+    public static long getPartialLength(String uri){
+        return backend.partialLength(getNameForUrl(uri));
+    }
 
-        File file = getPartialFileForUrl(uri);
-        if(file != null){
-            if(file.exists()){
-                len = file.length();
-                fos = new FileOutputStream(file, append);
-            } else {
-                if(file.createNewFile()){
-                    fos = new FileOutputStream(file, append);
-                }
-            }
-        }
+    /**
+     * Open the partial for a download, creating it if there isn't one.
+     * @param truncate start it over empty
+     */
+    public static StorageBackend.Handle openPartial(String uri, boolean truncate) throws IOException {
+        return backend.openPartial(getNameForUrl(uri), truncate);
+    }
 
-        return (fos == null) ? null : new Pair<>(len, fos);
+    /**
+     * Open a download or its partial to read while it may still be being written.
+     */
+    public static FileChannel openForRead(String uri, boolean partial) throws IOException {
+        return backend.openForRead(getNameForUrl(uri), partial);
     }
 
-    public static File getFileForUrl(String uri){
-        if(Build.VERSION.SDK_INT < 29){
-            //do it the old way
-            String downloadsPath = Environment.getExternalStorageDirectory().getPath() + "/Download/";
-            return new File(downloadsPath + getFilenameForUrl(uri));
+    /**
+     * The partial is complete, make it the download.
+     */
+    public static boolean publish(String uri){
+        return backend.publish(getNameForUrl(uri));
+    }
 
+    /**
+     * The finished download is getting parts of it fetched again, make it a partial.
+     */
+    public static boolean unpublish(String uri){
+        return backend.unpublish(getNameForUrl(uri));
+    }
+
+    /**
+     * Delete the partial along with its state and chunk map.
+     */
+    public static boolean deletePartial(String uri){
+        deletePartialState(uri);
+        deleteChunkMap(uri);
+        return backend.deletePartial(getNameForUrl(uri));
+    }
+
+    /**
+     * Delete the finished download along with its checksum and chunk map.
+     */
+    public static boolean deleteDownload(String uri){
+        deleteChecksum(uri);
+        deleteChunkMap(uri);
+        return backend.delete(getNameForUrl(uri));
+    }
+
+    /**
+     * @return what to hand a player for the finished download, or null if there isn't one
+     */
+    public static Uri getPlayableUri(String uri){
+        return backend.getPlayableUri(getNameForUrl(uri));
+    }
+
+    /**
+     * @return bytes free where downloads go
+     */
+    public static long getUsableSpace(){
+        return backend.getUsableSpace();
+    }
+
+    public static File getPartialStateFileForUrl(String uri){
+        return new File(backend.getSidecarDir(), getNameForUrl(uri) + ".partial.state");
+    }
+
+    public static PartialState loadPartialState(String uri){
+        File stateFile = getPartialStateFileForUrl(uri);
+        if(backend.partialLength(getNameForUrl(uri)) < 0){
+            //the partial was deleted out from under the state, so it's stale
+            stateFile.delete();
+            partialDone.remove(uri);
+            return null;
+        }
+
+        PartialState state = PartialState.load(stateFile);
+        if(state == null && stateFile.exists()){
+            //can't tell how much of a preallocated partial is real, so none of it is
+            backend.deletePartial(getNameForUrl(uri));
+            stateFile.delete();
+        }
+        if(state != null){
+            partialDone.put(uri, state.getDone());
         } else {
-            //TODO use the Media API
+            partialDone.remove(uri);
         }
+        return state;
+    }
+
+    /**
+     * Reserve the full length of a partial before writing to it. Uses fallocate where the
+     * filesystem supports it, otherwise just sets the length.
+     * @return true if the blocks are really allocated, false if the file may just be sparse
+     * @throws IOException if there isn't room for it
+     */
+    public static boolean preallocate(StorageBackend.Handle partial, long length) throws IOException {
+        long needed = length - partial.length();
+        if(needed > 0 && backend.getUsableSpace() < needed){
+            throw new IOException("Not enough space for partial, need " + needed + " more bytes");
+        }
+
+        if(partial.length() > length){
+            partial.setLength(length); // left over from something bigger
+        }
+
+        boolean allocated = false;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            //filesystems that don't do fallocate fall back to setLength
+            allocated = Fallocate.allocate(partial.getFD(), length);
+        }
+
+        if(!allocated && partial.length() < length){
+            partial.setLength(length);
+        }
+        return allocated;
+    }
 
-        return null;
+    public static void savePartialState(String uri, PartialState state) throws IOException {
+        state.save(getPartialStateFileForUrl(uri));
+        partialDone.put(uri, state.getDone());
     }
 
-    public static File getPartialFileForUrl(String uri){
-        if(Build.VERSION.SDK_INT < 29){
-            //do it the old way
-            String downloadsPath = Environment.getExternalStorageDirectory().getPath() + "/Download/";
-            return new File(downloadsPath + getFilenameForUrl(uri) + ".partial");
+    public static boolean deletePartialState(String uri){
+        partialDone.remove(uri);
+        return getPartialStateFileForUrl(uri).delete();
+    }
 
-        } else {
-            //TODO use the Media API
+    /**
+     * @return where the checksum of a finished download is kept
+     */
+    public static File getChecksumFileForUrl(String uri){
+        return new File(backend.getSidecarDir(), getNameForUrl(uri) + ".crc32");
+    }
+
+    /**
+     * Write the CRC32 of a finished download, as "crc length".
+     */
+    public static void saveChecksum(String uri, long crc, long length) throws IOException {
+        FileOutputStream fos = new FileOutputStream(getChecksumFileForUrl(uri));
+        try {
+            fos.write(String.format(Locale.US, "%08x %d\n", crc, length).getBytes("US-ASCII"));
+        } finally {
+            fos.close();
         }
+    }
+
+    public static boolean deleteChecksum(String uri){
+        return getChecksumFileForUrl(uri).delete();
+    }
 
-        return null;
+    /**
+     * @return where the chunk checksums of a download are kept, for checking and repairing it
+     */
+    public static File getChunkMapFileForUrl(String uri){
+        return new File(backend.getSidecarDir(), getNameForUrl(uri) + ".chunks");
+    }
+
+    public static ChunkMap loadChunkMap(String uri){
+        return ChunkMap.load(getChunkMapFileForUrl(uri));
+    }
+
+    public static void saveChunkMap(String uri, ChunkMap chunks) throws IOException {
+        chunks.save(getChunkMapFileForUrl(uri));
+    }
+
+    public static boolean deleteChunkMap(String uri){
+        return getChunkMapFileForUrl(uri).delete();
     }
 
     public static String getFilenameForUrl(String suri){
@@ -112,6 +291,14 @@ public class FileUtils {
         return filename;
     }
 
+    /**
+     * @return the file name without the leading slash, what the storage backend goes by
+     */
+    private static String getNameForUrl(String uri){
+        String filename = getFilenameForUrl(uri);
+        return (filename != null && filename.startsWith("/")) ? filename.substring(1) : filename;
+    }
+
     //endregion
 
     //region URI versions
@@ -124,16 +311,36 @@ public class FileUtils {
         return checkIfPartialDownloaded(uri.toString());
     }
 
-    public static Pair<Long, FileOutputStream> getFileOutputStreamForUrl(URI uri, boolean append) throws IOException {
-        return getFileOutputStreamForUrl(uri.toString(), append);
+    public static boolean deletePartial(URI uri){
+        return deletePartial(uri.toString());
+    }
+
+    public static boolean deleteDownload(URI uri){
+        return deleteDownload(uri.toString());
+    }
+
+    public static Uri getPlayableUri(URI uri){
+        return getPlayableUri(uri.toString());
+    }
+
+    public static File getPartialStateFileForUrl(URI uri){
+        return getPartialStateFileForUrl(uri.toString());
+    }
+
+    public static boolean deletePartialState(URI uri){
+        return deletePartialState(uri.toString());
+    }
+
+    public static File getChecksumFileForUrl(URI uri){
+        return getChecksumFileForUrl(uri.toString());
     }
 
-    public static File getFileForUrl(URI uri){
-        return getFileForUrl(uri.toString());
+    public static boolean deleteChecksum(URI uri){
+        return deleteChecksum(uri.toString());
     }
 
-    public static File getPartialFileForUrl(URI uri){
-        return getPartialFileForUrl(uri.toString());
+    public static boolean deleteChunkMap(URI uri){
+        return deleteChunkMap(uri.toString());
     }
 
     public static String getFilenameForUrl(URI uri){
@@ -36,11 +36,15 @@ import android.os.Handler;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import com.jss.gbdownloader.model.GBVideoInfo;
 import com.jss.gbdownloader.net.NetUtils;
 import com.jss.gbdownloader.net.RestRequestor;
+import com.jss.gbdownloader.net.VidListParser;
 import com.jss.gbdownloader.net.VidListRestRequest;
 import com.jss.gbdownloader.views.GBVidsItemRecyclerViewAdapter;
 
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity {
 
     private int lastQueried = 0;
@@ -58,19 +62,49 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-
+        FileUtils.init(getApplicationContext());
+        RestRequestor.init(getApplicationContext());
 
         handler = new Handler();
 
         adapter = new GBVidsItemRecyclerViewAdapter(this);
 
         IntentFilter filter = new IntentFilter(Constants.DL_PROG_INTENT_ACTION);
+        filter.addAction(Constants.SIZES_INTENT_ACTION);
+        filter.addAction(Constants.REPAIR_INTENT_ACTION);
         receiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                String url = intent.getStringExtra(Constants.DL_PROG_URL_KEY);
-                int progress = intent.getIntExtra(Constants.DL_PROG_PROGRESS_KEY, 0);
-                adapter.updateProgress(url, progress);
+                if(Constants.REPAIR_INTENT_ACTION.equals(intent.getAction())){
+                    adapter.repairChecked(intent.getStringExtra(Constants.REPAIR_URL_KEY),
+                            intent.getLongExtra(Constants.REPAIR_BAD_KEY, -1));
+                    return;
+                }
+
+                String[] urls = intent.getStringArrayExtra(Constants.DL_PROG_URLS_KEY);
+                long[] done = intent.getLongArrayExtra(Constants.DL_PROG_DONE_KEY);
+                long[] total = intent.getLongArrayExtra(Constants.DL_PROG_TOTAL_KEY);
+                if(Constants.SIZES_INTENT_ACTION.equals(intent.getAction())){
+                    if(urls != null && total != null){
+                        adapter.updateSizes(urls, total);
+                    }
+                    return;
+                }
+
+                adapter.setThroughput(intent.getLongExtra(Constants.DL_PROG_THROUGHPUT_KEY, -1));
+
+                boolean[] finished = intent.getBooleanArrayExtra(Constants.DL_PROG_FINISHED_KEY);
+                if(urls == null || done == null || total == null || finished == null){
+                    return;
+                }
+
+                for(int i = 0; i < urls.length; i++){
+                    if(finished[i]){
+                        adapter.downloadFinished(urls[i]);
+                    } else {
+                        adapter.updateProgress(urls[i], ProgressAggregator.percentOf(done[i], total[i]));
+                    }
+                }
             }
         };
         registerReceiver(receiver, filter);
@@ -161,6 +195,7 @@ public class MainActivity extends AppCompatActivity {
 
             RestRequestor.getVidListQuery(
                     vidListRestCallback,
+                    vidListListener,
                     prefs.getString(Constants.API_KEY, null),
                     num,
                     offset,
@@ -192,9 +227,28 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         unregisterReceiver(receiver);
         unbindService(adapter.svcConnection);
+        adapter.release();
         super.onDestroy();
     }
 
+    // videos are added as each page is read, a few at a time
+    private VidListParser.Listener vidListListener = new VidListParser.Listener() {
+
+        @Override
+        public void onVids(final List<GBVideoInfo> vids) {
+            if(vidView != null && vidView.getAdapter() != null && vidView.getAdapter() instanceof GBVidsItemRecyclerViewAdapter){
+                final GBVidsItemRecyclerViewAdapter adapter = (GBVidsItemRecyclerViewAdapter)vidView.getAdapter();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        adapter.addData(vids);
+                    }
+                });
+
+            }
+        }
+    };
+
     private VidListRestRequest.RestCallback vidListRestCallback = new VidListRestRequest.RestCallback() {
 
         @Override
@@ -204,16 +258,7 @@ public class MainActivity extends AppCompatActivity {
                 final VidListRestRequest.VidListResult vResult = (VidListRestRequest.VidListResult) result;
 
                 if(vResult.resultCode == NetUtils.ResultCode.OK.getCode()){
-                    if(vidView != null && vidView.getAdapter() != null && vidView.getAdapter() instanceof GBVidsItemRecyclerViewAdapter){
-                        final GBVidsItemRecyclerViewAdapter adapter = (GBVidsItemRecyclerViewAdapter)vidView.getAdapter();
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                adapter.addData(vResult.vidList);
-                            }
-                        });
-
-                    }
+                    // the videos already went to the adapter through vidListListener
                 } else {
                     //TODO error checking
                 }
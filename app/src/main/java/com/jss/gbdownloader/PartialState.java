@@ -0,0 +1,388 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Byte ranges of a download with a known length and how far each one got, persisted alongside
+ * the partial. The partial is preallocated to full size, so this is the only record of
+ * which bytes in it are real, and what lets an interrupted download pick every range back up.
+ * Each range also keeps the CRC of what it's written so far, so the checksum of the finished
+ * file never needs the file read back.
+ */
+public class PartialState {
+
+    private static final String TAG = PartialState.class.getSimpleName();
+
+    private static final String LENGTH_KEY = "length";
+    private static final String VALIDATOR_KEY = "validator";
+    private static final String SEGMENTS_KEY = "segments";
+    private static final String SEGMENT_KEY_PREFIX = "segment.";
+    private static final String CHECKSUM_KEY_SUFFIX = ".crc";
+
+    // how far ahead of a reader its range has to be before the others stop holding back for it
+    private static final long WANT_LOOKAHEAD = 8 * 1024 * 1024;
+    private static final long WANT_TIMEOUT = 10000;
+
+    private final long length;
+    private final String validator;
+    private final List<Segment> segments;
+
+    // where a reader streaming the partial is, -1 if nobody is
+    private volatile long wanted = -1;
+    private volatile long wantedAt = 0;
+
+    private PartialState(long length, String validator, List<Segment> segments){
+        this.length = length;
+        this.validator = validator;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Split the remainder of a download into ranges.
+     * @param start bytes already written contiguously from the start of the file
+     * @param length total length of the file
+     * @param count max number of ranges to split into
+     * @param minSize smallest range worth its own connection, a remainder smaller than two of
+     *                these stays one range
+     * @param validator ETag or Last-Modified the file was first served with, null if it had neither
+     * @return the new state
+     */
+    public static PartialState split(long start, long length, int count, long minSize, String validator){
+        long remaining = length - start;
+        int n = (int) Math.max(1, Math.min(count, remaining / minSize));
+
+        List<Segment> segments = new ArrayList<>(n + 1);
+        if(start > 0){
+            //what's already on disk is a finished range, its checksum is filled in by readChecksums
+            segments.add(new Segment(0, start, start, null));
+        }
+
+        long size = remaining / n;
+        long from = start;
+        for(int i = 0; i < n; i++){
+            long to = (i == n - 1) ? length : from + size;
+            segments.add(new Segment(from, from, to, new RangeChecksum()));
+            from = to;
+        }
+
+        return new PartialState(length, validator, segments);
+    }
+
+    /**
+     * A finished download going back to being a partial so only its bad ranges are fetched
+     * again. Everything else is a complete range with its checksum taken from the chunks.
+     * @param bad [start, end) of each bad range, in order, on chunk boundaries
+     */
+    public static PartialState repair(ChunkMap chunks, List<long[]> bad){
+        List<Segment> segments = new ArrayList<>(bad.size() * 2 + 1);
+        long from = 0;
+        for(long[] range : bad){
+            if(range[0] > from){
+                segments.add(new Segment(from, range[0], range[0], chunks.getChecksum(from, range[0])));
+            }
+            segments.add(new Segment(range[0], range[0], range[1], new RangeChecksum()));
+            from = range[1];
+        }
+        if(from < chunks.getLength()){
+            segments.add(new Segment(from, chunks.getLength(), chunks.getLength(), chunks.getChecksum(from, chunks.getLength())));
+        }
+
+        return new PartialState(chunks.getLength(), chunks.getValidator(), segments);
+    }
+
+    public static PartialState load(File file){
+        if(file == null || !file.exists()){
+            return null;
+        }
+
+        Properties props = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            props.load(fis);
+
+            long length = Long.parseLong(props.getProperty(LENGTH_KEY));
+            int count = Integer.parseInt(props.getProperty(SEGMENTS_KEY));
+            List<Segment> segments = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                String[] vals = props.getProperty(SEGMENT_KEY_PREFIX + i).split(",");
+                long start = Long.parseLong(vals[0]);
+                long pos = Long.parseLong(vals[1]);
+
+                // states saved before checksums were kept have none, readChecksums covers those
+                RangeChecksum checksum = RangeChecksum.parse(props.getProperty(SEGMENT_KEY_PREFIX + i + CHECKSUM_KEY_SUFFIX));
+                if(checksum.getLength() != pos - start){
+                    checksum = null;
+                }
+                segments.add(new Segment(start, pos, Long.parseLong(vals[2]), checksum));
+            }
+
+            return new PartialState(length, props.getProperty(VALIDATOR_KEY), segments);
+
+        } catch (IOException | RuntimeException e) {
+            //unreadable or from an older format, treat it like there's no state
+            Log.e(TAG, "Couldn't load partial state: " + file, e);
+        } finally {
+            if(fis != null){
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing state file", e);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the state out. Goes through a temp file and a rename so a kill mid-write
+     * never leaves a half written state behind.
+     */
+    public synchronized void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(LENGTH_KEY, String.valueOf(length));
+        if(validator != null){
+            props.setProperty(VALIDATOR_KEY, validator);
+        }
+        props.setProperty(SEGMENTS_KEY, String.valueOf(segments.size()));
+        for(int i = 0; i < segments.size(); i++){
+            Segment seg = segments.get(i);
+            props.setProperty(SEGMENT_KEY_PREFIX + i, seg.start + "," + seg.pos + "," + seg.end);
+            if(seg.savedChecksum != null){
+                props.setProperty(SEGMENT_KEY_PREFIX + i + CHECKSUM_KEY_SUFFIX,
+                        seg.savedChecksum.toString(seg.savedLiveLength, seg.savedLiveCrc));
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            props.store(fos, null);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if(!tmp.renameTo(file)){
+            throw new IOException("Couldn't replace state file " + file);
+        }
+    }
+
+    /**
+     * Move a range along once its bytes are in the file and in its checksum. Done under the
+     * same lock as save() so a saved offset always matches its saved checksum. Runs on every
+     * write, so it only takes the checksum's numbers, save() does the formatting.
+     */
+    public synchronized void advance(Segment seg, long bytes){
+        seg.pos += bytes;
+        seg.snapshotChecksum();
+        if(bytes > 0){
+            notifyAll(); // anyone in awaitWritten
+        }
+    }
+
+    /**
+     * @return end of the run of written bytes starting at offset, offset itself if that byte
+     * isn't written yet
+     */
+    public long getWrittenFrom(long offset){
+        long end = offset;
+        for(Segment seg : segments){
+            if(seg.start <= end && end < seg.end){
+                long pos = seg.pos;
+                if(pos <= end){
+                    break;
+                }
+                end = pos; // a complete range runs on into the next one
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Wait for the byte at offset to be written.
+     * @return same as getWrittenFrom, offset if it timed out first
+     */
+    public synchronized long awaitWritten(long offset, long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        long end;
+        while((end = getWrittenFrom(offset)) <= offset && offset < length){
+            long left = deadline - SystemClock.elapsedRealtime();
+            if(left <= 0){
+                break;
+            }
+            wait(left);
+        }
+        return end;
+    }
+
+    /**
+     * A reader is at offset and needs what's after it first.
+     */
+    public void want(long offset){
+        wanted = offset;
+        wantedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return true if the range should hold back so the one a reader is waiting on gets more of
+     * the bandwidth. Only while the reader is short of WANT_LOOKAHEAD bytes to go on with, and
+     * WANT_TIMEOUT after it last asked.
+     */
+    public boolean shouldYield(Segment seg){
+        long offset = wanted;
+        if(offset < 0 || SystemClock.elapsedRealtime() - wantedAt > WANT_TIMEOUT){
+            return false;
+        }
+        for(Segment other : segments){
+            if(other.start <= offset && offset < other.end){
+                return other != seg && !other.isComplete() && other.pos < offset + WANT_LOOKAHEAD;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hash whatever's been written to ranges without a checksum, either the part of the file
+     * that was on disk before it was split or a state from before checksums were kept. Only
+     * reads those ranges, and only once, since the result is saved along with the state.
+     */
+    public void readChecksums(FileChannel partial) throws IOException {
+        for(Segment seg : segments){
+            if(seg.checksum != null){
+                continue;
+            }
+            if(seg.pos == seg.start){
+                seg.checksum = new RangeChecksum();
+                continue;
+            }
+
+            seg.checksum = RangeChecksum.read(partial, seg.start, seg.pos - seg.start);
+            advance(seg, 0);
+        }
+    }
+
+    /**
+     * @return CRC32 of the whole file, only meaningful once every range is complete
+     */
+    public long getChecksum(){
+        long crc = 0;
+        for(Segment seg : segments){
+            crc = RangeChecksum.combine(crc, seg.checksum.getValue(), seg.end - seg.start);
+        }
+        return crc;
+    }
+
+    public long getLength(){
+        return length;
+    }
+
+    /**
+     * @return what to send as If-Range so the server only sends more of this same file, or null
+     */
+    public String getValidator(){
+        return validator;
+    }
+
+    public List<Segment> getSegments(){
+        return segments;
+    }
+
+    public Segment firstIncomplete(){
+        for(Segment seg : segments){
+            if(!seg.isComplete()){
+                return seg;
+            }
+        }
+        return null;
+    }
+
+    public boolean isComplete(){
+        return firstIncomplete() == null;
+    }
+
+    /**
+     * @return bytes written across all ranges
+     */
+    public long getDone(){
+        long done = 0;
+        for(Segment seg : segments){
+            done += seg.pos - seg.start;
+        }
+        return done;
+    }
+
+    /**
+     * A range of the file, [start, end). Only the thread downloading the range moves pos and
+     * updates the checksum.
+     */
+    public static class Segment {
+        public final long start;
+        public final long end;
+        public volatile long pos;
+
+        // CRC of [start, pos), null until readChecksums if the bytes weren't hashed as they came in
+        private RangeChecksum checksum;
+        // what save() writes, kept in step with pos by advance(). The checksum's earlier pieces
+        // don't change once it's being written, only its live piece is taken each time
+        private RangeChecksum savedChecksum;
+        private long savedLiveLength;
+        private long savedLiveCrc;
+
+        Segment(long start, long pos, long end, RangeChecksum checksum){
+            this.start = start;
+            this.pos = pos;
+            this.end = end;
+            this.checksum = checksum;
+            snapshotChecksum();
+        }
+
+        private void snapshotChecksum(){
+            savedChecksum = checksum;
+            if(checksum != null){
+                savedLiveLength = checksum.getLiveLength();
+                savedLiveCrc = checksum.getLiveValue();
+            }
+        }
+
+        public RangeChecksum getChecksum(){
+            return checksum;
+        }
+
+        public boolean isComplete(){
+            return pos >= end;
+        }
+    }
+
+}
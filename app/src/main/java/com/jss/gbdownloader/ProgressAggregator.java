@@ -0,0 +1,213 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects progress from every running download and hands it on as one frame per tick.
+ * Download threads only bump a counter, everything else happens on the tick thread, and
+ * a tick where nothing moved sends nothing.
+ */
+public class ProgressAggregator {
+
+    private static final String TAG = ProgressAggregator.class.getSimpleName();
+
+    public static final long TICK_MS = 500;
+
+    // weight of the newest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final ConcurrentHashMap<String, Tracker> trackers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    private final FrameListener listener;
+
+    // only touched on the tick thread
+    private final ArrayList<Tracker> changed = new ArrayList<>();
+    private long lastTick;
+
+    public ProgressAggregator(FrameListener listener){
+        this.listener = listener;
+        lastTick = SystemClock.elapsedRealtime();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start reporting a download, replacing whatever was reported for the uri before.
+     * @param total -1 if unknown
+     */
+    public Tracker track(String uri, long done, long total){
+        Tracker tracker = new Tracker(uri, done, total);
+        trackers.put(uri, tracker);
+        return tracker;
+    }
+
+    /**
+     * The download stopped, for whatever reason. It goes out in the next frame marked finished
+     * and is dropped after that.
+     */
+    public void finish(String uri){
+        Tracker tracker = trackers.get(uri);
+        if(tracker != null){
+            tracker.finished = true;
+        }
+    }
+
+    /**
+     * @return the download's tracker, or null if it isn't being reported
+     */
+    public Tracker get(String uri){
+        return trackers.get(uri);
+    }
+
+    public void shutdown(){
+        ticker.shutdownNow();
+    }
+
+    /**
+     * @return a percentage for the progress bar. Unknown lengths step through 0-75 as data comes
+     * in, so there's still something moving without ever looking done.
+     */
+    public static int percentOf(long done, long total){
+        if(total > 0){
+            return (int) Math.min(100, 100 * done / total);
+        }
+        return (int) ((done >> 20) % 4) * 25; // moves every MiB
+    }
+
+    private void tick(){
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastTick;
+        lastTick = now;
+
+        changed.clear();
+        for(Tracker tracker : trackers.values()){
+            long done = tracker.done.get();
+            boolean finished = tracker.finished;
+            if(done == tracker.lastDone && !finished){
+                continue;
+            }
+
+            long rate = (elapsed > 0) ? (done - tracker.lastDone) * 1000 / elapsed : 0;
+            tracker.rate = (tracker.rate == 0) ? rate : (long) (RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * tracker.rate);
+            tracker.lastDone = done;
+            tracker.lastFinished = finished;
+            changed.add(tracker);
+        }
+
+        if(changed.isEmpty()){
+            return;
+        }
+
+        int n = changed.size();
+        String[] uris = new String[n];
+        long[] done = new long[n];
+        long[] total = new long[n];
+        long[] rate = new long[n];
+        boolean[] finished = new boolean[n];
+        for(int i = 0; i < n; i++){
+            Tracker tracker = changed.get(i);
+            uris[i] = tracker.uri;
+            done[i] = tracker.lastDone;
+            total[i] = tracker.total;
+            rate[i] = tracker.lastFinished ? 0 : tracker.rate;
+            finished[i] = tracker.lastFinished;
+
+            if(tracker.lastFinished){
+                // only if it hasn't been replaced by a new run of the same uri
+                trackers.remove(tracker.uri, tracker);
+            }
+        }
+
+        // an exception out of here would cancel every tick after it, for good
+        try {
+            listener.onFrame(uris, done, total, rate, finished);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "exception handling progress frame", e);
+        }
+    }
+
+    /**
+     * Handed to the download threads, safe to advance from several at once.
+     */
+    public static class Tracker {
+
+        private final String uri;
+        private final long total;
+        private final AtomicLong done;
+        private volatile boolean finished = false;
+
+        // only written on the tick thread
+        private long lastDone;
+        private volatile long rate = 0;
+        private boolean lastFinished;
+
+        Tracker(String uri, long done, long total){
+            this.uri = uri;
+            this.total = total;
+            this.done = new AtomicLong(done);
+            this.lastDone = done;
+        }
+
+        /**
+         * @return bytes done so far
+         */
+        public long advance(int read){
+            return done.addAndGet(read);
+        }
+
+        public long getDone(){
+            return done.get();
+        }
+
+        public long getTotal(){
+            return total;
+        }
+
+        /**
+         * @return smoothed bytes per second as of the last tick
+         */
+        public long getRate(){
+            return rate;
+        }
+    }
+
+    public interface FrameListener {
+        /**
+         * One entry per download that moved or finished since the last frame, same index across arrays.
+         * @param rate smoothed bytes per second
+         */
+        void onFrame(String[] uris, long[] done, long[] total, long[] rate, boolean[] finished);
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+/**
+ * Picks which quality of a video to download from how fast downloads have been going. The
+ * best quality that would finish within the target time wins, and the lowest is the fallback
+ * when nothing would. The rate is a moving average of the total across running downloads, so
+ * it follows the link down quickly when it collapses without jumping on every dip.
+ */
+public class QualityPicker {
+
+    // what a download should take at most, 30 minutes
+    public static final long DEFAULT_TARGET_MS = 30 * 60 * 1000;
+    // bytes per second assumed before anything's been measured
+    public static final long DEFAULT_RATE = 512 * 1024;
+
+    // weight of each new sample, one every progress tick
+    private static final double SMOOTHING = 0.1;
+
+    private final long targetMs;
+    private double rate;
+
+    /**
+     * @param initialRate bytes per second to start from, a previous estimate or DEFAULT_RATE
+     */
+    public QualityPicker(long targetMs, long initialRate){
+        this.targetMs = targetMs;
+        this.rate = (initialRate > 0) ? initialRate : DEFAULT_RATE;
+    }
+
+    /**
+     * @param bytesPerSec total rate across everything downloading, only while something is
+     */
+    public synchronized void sampled(long bytesPerSec){
+        if(bytesPerSec > 0){
+            rate += (bytesPerSec - rate) * SMOOTHING;
+        }
+    }
+
+    /**
+     * @return estimated bytes per second
+     */
+    public synchronized long getRate(){
+        return (long) rate;
+    }
+
+    public long getTargetMs(){
+        return targetMs;
+    }
+
+    /**
+     * @param sizes bytes of each choice, best first, -1 where it isn't known
+     * @return index of the choice to download
+     */
+    public int pick(long[] sizes){
+        return pick(sizes, getRate(), targetMs);
+    }
+
+    /**
+     * @param sizes bytes of each choice, best first, -1 where it isn't known
+     * @return index of the best choice that finishes in targetMs at bytesPerSec. If none do
+     * it's the last one, and if no size is known it's the first.
+     */
+    public static int pick(long[] sizes, long bytesPerSec, long targetMs){
+        if(sizes.length == 0){
+            return -1;
+        }
+
+        boolean anyKnown = false;
+        for(int i = 0; i < sizes.length; i++){
+            if(sizes[i] < 0){
+                continue; // can't tell how long it'd take
+            }
+            anyKnown = true;
+            if(bytesPerSec > 0 && sizes[i] * 1000 / bytesPerSec <= targetMs){
+                return i;
+            }
+        }
+        return anyKnown ? sizes.length - 1 : 0;
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of a byte range, built up as the range is written. java.util.zip.CRC32 can't be
+ * restarted from a saved value, so every run over the range is its own piece, and the
+ * pieces get combined into one CRC at the end (the same math as zlib's crc32_combine).
+ * Saving the pieces is what lets a resumed download skip re-reading what it already has.
+ */
+public class RangeChecksum {
+
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    private final List<long[]> pieces = new ArrayList<>(); // {length, crc}
+    private CRC32 live;
+    private long liveLength = 0;
+    private byte[] scratch;
+
+    public RangeChecksum(){
+    }
+
+    /**
+     * @param saved pieces as written by toString()
+     */
+    public static RangeChecksum parse(String saved){
+        RangeChecksum checksum = new RangeChecksum();
+        if(saved != null && !saved.isEmpty()){
+            for(String piece : saved.split(",")){
+                int colon = piece.indexOf(':');
+                checksum.pieces.add(new long[]{
+                        Long.parseLong(piece.substring(0, colon)),
+                        Long.parseLong(piece.substring(colon + 1), 16)
+                });
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Hash bytes already on disk, for ranges that were written before anything was tracking them.
+     */
+    public static RangeChecksum read(FileChannel channel, long start, long length) throws IOException {
+        RangeChecksum checksum = new RangeChecksum();
+        ByteBuffer buf = BufferPool.acquire(BufferPool.DEFAULT_SIZE);
+        try {
+            long pos = start;
+            long end = start + length;
+            while(pos < end){
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                int read = channel.read(buf, pos);
+                if(read < 0){
+                    throw new IOException("File ended at " + pos + " before " + end);
+                }
+                buf.flip();
+                checksum.update(buf);
+                pos += read;
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+        return checksum;
+    }
+
+    /**
+     * Add the bytes between the buffer's position and limit, leaving the buffer as it was.
+     */
+    public void update(ByteBuffer data){
+        if(live == null){
+            live = new CRC32();
+        }
+
+        // runs on every write, so the buffer's position is put back rather than reading a duplicate
+        int start = data.position();
+        int n = data.remaining();
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            live.update(data);
+            data.position(start);
+        } else if(data.hasArray()){
+            live.update(data.array(), data.arrayOffset() + start, n);
+        } else {
+            // direct buffer and no ByteBuffer update before O, go through a small array
+            if(scratch == null){
+                scratch = new byte[SCRATCH_SIZE];
+            }
+            while(data.hasRemaining()){
+                int len = Math.min(scratch.length, data.remaining());
+                data.get(scratch, 0, len);
+                live.update(scratch, 0, len);
+            }
+            data.position(start);
+        }
+        liveLength += n;
+    }
+
+    /**
+     * Back to empty, keeping the CRC32 and scratch array for the next range.
+     */
+    public void reset(){
+        pieces.clear();
+        if(live != null){
+            live.reset();
+        }
+        liveLength = 0;
+    }
+
+    /**
+     * Append a range hashed somewhere else, before anything is given to update().
+     */
+    public void add(long length, long crc){
+        pieces.add(new long[]{ length, crc });
+    }
+
+    public long getLength(){
+        long length = liveLength;
+        for(long[] piece : pieces){
+            length += piece[0];
+        }
+        return length;
+    }
+
+    public long getValue(){
+        long crc = 0;
+        for(long[] piece : pieces){
+            crc = combine(crc, piece[1], piece[0]);
+        }
+        if(live != null){
+            crc = combine(crc, live.getValue(), liveLength);
+        }
+        return crc;
+    }
+
+    /**
+     * @return length of the piece being written, 0 before anything's given to update()
+     */
+    public long getLiveLength(){
+        return liveLength;
+    }
+
+    /**
+     * @return CRC of the piece being written
+     */
+    public long getLiveValue(){
+        return (live == null) ? 0 : live.getValue();
+    }
+
+    /**
+     * @return pieces so far, including the one being written, as "length:crc,..."
+     */
+    @Override
+    public String toString(){
+        return toString(liveLength, getLiveValue());
+    }
+
+    /**
+     * Same as toString(), with the piece being written as of when its length and CRC were
+     * taken. Lets another thread save it without the writer building a string every time.
+     */
+    public String toString(long liveLength, long liveCrc){
+        StringBuilder builder = new StringBuilder();
+        for(long[] piece : pieces){
+            appendPiece(builder, piece[0], piece[1]);
+        }
+        if(liveLength > 0){
+            appendPiece(builder, liveLength, liveCrc);
+        }
+        return builder.toString();
+    }
+
+    private static void appendPiece(StringBuilder builder, long length, long crc){
+        if(builder.length() > 0){
+            builder.append(',');
+        }
+        builder.append(length).append(':').append(Long.toHexString(crc));
+    }
+
+    //region crc32_combine, from zlib
+
+    private static final long POLY = 0xedb88320L;
+
+    /**
+     * @return the CRC of A followed by B, given CRC(A), CRC(B) and B's length
+     */
+    public static long combine(long crc1, long crc2, long len2){
+        if(len2 <= 0){
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit in odd
+        odd[0] = POLY;
+        long row = 1;
+        for(int n = 1; n < 32; n++){
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+
+        // apply len2 zeros to crc1, the first square puts the operator for one zero byte in even
+        do {
+            gf2MatrixSquare(even, odd);
+            if((len2 & 1) != 0){
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if(len2 == 0){
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if((len2 & 1) != 0){
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while(len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec){
+        long sum = 0;
+        int i = 0;
+        while(vec != 0){
+            if((vec & 1) != 0){
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat){
+        for(int n = 0; n < 32; n++){
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    //endregion
+
+}
@@ -0,0 +1,63 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.util.Random;
+
+/**
+ * How long to wait before trying a failed download again. Delays double from baseDelay up to
+ * maxDelay, and each is picked at random between zero and that (full jitter), so downloads
+ * that failed together, say when the network dropped, don't all come back at the same moment.
+ */
+public class RetryPolicy {
+
+    private final int maxFailures;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    /**
+     * @param maxFailures failures in a row before giving up
+     * @param baseDelay ms, upper bound of the first delay
+     * @param maxDelay ms, upper bound of any delay
+     */
+    public RetryPolicy(int maxFailures, long baseDelay, long maxDelay){
+        this.maxFailures = maxFailures;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param failures failures in a row so far, starting at 1
+     * @return ms to wait before trying again, or -1 to give up
+     */
+    public long getDelay(int failures){
+        if(failures >= maxFailures){
+            return -1;
+        }
+
+        // cap the shift so it can't overflow before the min does its job
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(failures - 1, 30));
+        synchronized (random){
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size and validator of every url that's been probed or downloaded, kept across runs so
+ * nothing has to be asked for twice. One line per url, "uri\tlength\ttime[\tvalidator]".
+ * Entries older than MAX_AGE are treated as missing and get probed again.
+ */
+public class SizeIndex {
+
+    private static final String TAG = SizeIndex.class.getSimpleName();
+
+    private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private final File file;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    public SizeIndex(File file){
+        this.file = file;
+    }
+
+    /**
+     * Read the index back. Call once, before anything else.
+     */
+    public void load(){
+        if(!file.exists()){
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] parts = line.split("\t");
+                if(parts.length < 3){
+                    continue; // torn write
+                }
+                try {
+                    entries.put(parts[0], new Entry(Long.parseLong(parts[1]),
+                            (parts.length > 3) ? parts[3] : null, Long.parseLong(parts[2])));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping bad index line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read size index, keeping what was read", e);
+        } finally {
+            if(reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing size index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return what's known about the uri, or null if nothing is or it's too old to go by
+     */
+    public Entry get(String uri){
+        Entry entry = entries.get(uri);
+        if(entry != null && System.currentTimeMillis() - entry.time > MAX_AGE){
+            entries.remove(uri, entry);
+            dirty = true;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return bytes, or -1 if it isn't known
+     */
+    public long getLength(String uri){
+        Entry entry = get(uri);
+        return (entry == null) ? -1 : entry.length;
+    }
+
+    public void put(String uri, long length, String validator){
+        if(length < 0){
+            return;
+        }
+        Entry old = entries.put(uri, new Entry(length, validator, System.currentTimeMillis()));
+        if(old == null || old.length != length){
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the index out if it's changed, through a temp file and a rename.
+     */
+    public synchronized void save(){
+        if(!dirty){
+            return;
+        }
+        dirty = false;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            StringBuilder lines = new StringBuilder();
+            for(Map.Entry<String, Entry> e : entries.entrySet()){
+                Entry entry = e.getValue();
+                lines.append(e.getKey()).append('\t').append(entry.length).append('\t').append(entry.time);
+                if(entry.validator != null){
+                    lines.append('\t').append(entry.validator);
+                }
+                lines.append('\n');
+            }
+
+            fos = new FileOutputStream(tmp);
+            fos.write(lines.toString().getBytes("UTF-8"));
+            fos.close();
+            fos = null;
+
+            if(!tmp.renameTo(file)){
+                throw new IOException("Couldn't replace size index");
+            }
+        } catch (IOException e) {
+            // it's only a cache, the sizes get probed again
+            Log.e(TAG, "Couldn't save size index", e);
+            dirty = true;
+        } finally {
+            if(fos != null){
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing size index", e);
+                }
+            }
+        }
+    }
+
+    public static class Entry {
+        public final long length;
+        public final String validator; // ETag or Last-Modified, null if it had neither
+        public final long time;
+
+        public Entry(long length, String validator, long time){
+            this.length = length;
+            this.validator = validator;
+            this.time = time;
+        }
+    }
+
+}
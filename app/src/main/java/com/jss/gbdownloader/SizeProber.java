@@ -0,0 +1,135 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds out how big files are before they're downloaded, a few at a time in the background.
+ * Whatever's already in the index or being probed is skipped, the rest goes out as one batch
+ * and is reported back together once the whole batch is done. The newest batch goes first,
+ * so rows that were just scrolled to come before ones scrolled past.
+ */
+public class SizeProber {
+
+    private static final String TAG = SizeProber.class.getSimpleName();
+
+    private final SizeIndex index;
+    private final Probe probe;
+    private final Listener listener;
+    private final ThreadPoolExecutor exec;
+    private final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param maxConcurrent most probes out at once, they share the connection pool with downloads
+     */
+    public SizeProber(SizeIndex index, int maxConcurrent, Probe probe, Listener listener){
+        this.index = index;
+        this.probe = probe;
+        this.listener = listener;
+        this.exec = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                });
+    }
+
+    /**
+     * Probe whichever of the uris aren't known yet.
+     */
+    public void probe(String[] uris){
+        final List<String> batch = new ArrayList<>();
+        for(String uri : uris){
+            if(index.get(uri) == null && inFlight.add(uri)){
+                batch.add(uri);
+            }
+        }
+        if(batch.isEmpty()){
+            return;
+        }
+
+        final long[] lengths = new long[batch.size()];
+        Arrays.fill(lengths, -1);
+        final AtomicInteger remaining = new AtomicInteger(batch.size());
+
+        for(int i = 0; i < batch.size(); i++){
+            final int n = i;
+            try {
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String uri = batch.get(n);
+                        try {
+                            SizeIndex.Entry entry = probe.probe(uri);
+                            if(entry != null){
+                                index.put(uri, entry.length, entry.validator);
+                                lengths[n] = entry.length;
+                            }
+                        } catch (IOException e) {
+                            Log.w(TAG, "Couldn't probe " + uri + ": " + e);
+                        } finally {
+                            inFlight.remove(uri);
+                            if(remaining.decrementAndGet() == 0){
+                                index.save();
+                                listener.onProbed(batch.toArray(new String[batch.size()]), lengths);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(batch.get(n)); // shut down
+            }
+        }
+    }
+
+    public void shutdown(){
+        exec.shutdownNow();
+    }
+
+    public interface Probe {
+        /**
+         * @return the length and validator, or null if the server wouldn't say
+         */
+        SizeIndex.Entry probe(String uri) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * @param lengths bytes, -1 for any that couldn't be probed
+         */
+        void onProbed(String[] uris, long[] lengths);
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes connections that stop delivering data. The read timeout only covers a single read of
+ * the socket, so a connection that trickles in TLS fragments, or one the network silently
+ * dropped mid record, can sit there without ever timing out. Each download marks when it starts
+ * waiting on a read and when the read returns, and anything waiting longer than the timeout
+ * gets disconnected, which fails the read so the download can reconnect.
+ */
+public class StallWatchdog {
+
+    private static final String TAG = StallWatchdog.class.getSimpleName();
+
+    private final long timeout;
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param timeout ms a read can go without returning data
+     */
+    public StallWatchdog(long timeout){
+        this.timeout = timeout;
+        long interval = Math.max(1, timeout / 4);
+        checker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a connection, close() the watch when done with it.
+     */
+    public Watch watch(HttpURLConnection conn){
+        Watch watch = new Watch(conn);
+        watches.add(watch);
+        return watch;
+    }
+
+    public long getTimeout(){
+        return timeout;
+    }
+
+    public void shutdown(){
+        checker.shutdownNow();
+    }
+
+    private void check(){
+        long now = SystemClock.elapsedRealtime();
+        for(Watch watch : watches){
+            long since = watch.waitingSince;
+            if(since > 0 && now - since >= timeout && !watch.stalled){
+                watch.stalled = true;
+                Log.w(TAG, "No data for " + (now - since) + "ms, disconnecting " + watch.conn.getURL());
+                watch.conn.disconnect();
+            }
+        }
+    }
+
+    public class Watch {
+
+        private final HttpURLConnection conn;
+        private volatile long waitingSince = 0; // 0 when not in a read
+        private volatile boolean stalled = false;
+
+        private Watch(HttpURLConnection conn){
+            this.conn = conn;
+        }
+
+        public void beginRead(){
+            waitingSince = SystemClock.elapsedRealtime();
+        }
+
+        public void endRead(){
+            waitingSince = 0;
+        }
+
+        /**
+         * @return true if the watchdog closed the connection
+         */
+        public boolean isStalled(){
+            return stalled;
+        }
+
+        public void close(){
+            watches.remove(this);
+        }
+    }
+
+}
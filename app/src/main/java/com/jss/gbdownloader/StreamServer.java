@@ -0,0 +1,310 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Minimal HTTP server on the loopback interface, so a player can open a download while it's
+ * still coming in. Answers GET and HEAD with Range support for one file per url. Bytes that
+ * aren't written yet block the response until they are, and each read tells the source
+ * where the player is so it can fetch that part first. Urls carry a random token, other
+ * apps on the device can reach loopback too.
+ */
+public class StreamServer {
+
+    private static final String TAG = StreamServer.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // a player waiting this long on one byte has a download that stopped under it
+    private static final long READ_TIMEOUT = 60000;
+    private static final int SOCKET_TIMEOUT = 30000;
+    private static final String CONTENT_TYPE = "video/mp4";
+
+    private final Opener opener;
+    private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>(); // token -> uri
+    private final ConcurrentHashMap<String, String> urls = new ConcurrentHashMap<>(); // uri -> url
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+    private ServerSocket server;
+
+    public StreamServer(Opener opener){
+        this.opener = opener;
+    }
+
+    /**
+     * @return a url on the loopback server for the download, starting the server if it isn't yet
+     */
+    public synchronized String getUrl(String uri) throws IOException {
+        if(server == null){
+            start();
+        }
+
+        String url = urls.get(uri);
+        if(url == null){
+            String token = UUID.randomUUID().toString();
+            String name = FileUtils.getFilenameForUrl(uri);
+            // keep the file name at the end, players go by its extension
+            url = "http://127.0.0.1:" + server.getLocalPort() + "/" + token + ((name != null && name.startsWith("/")) ? name : "/");
+            tokens.put(token, uri);
+            urls.put(uri, url);
+        }
+        return url;
+    }
+
+    public synchronized void stop(){
+        if(server != null){
+            try {
+                server.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing server socket", e);
+            }
+            server = null;
+        }
+        exec.shutdownNow();
+    }
+
+    private void start() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        server = socket;
+        exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                while(!socket.isClosed()){
+                    try {
+                        final Socket client = socket.accept();
+                        exec.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(client);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        break; // stopped
+                    } catch (IOException e) {
+                        if(!socket.isClosed()){
+                            Log.e(TAG, "exception accepting stream connection", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(Socket client){
+        Source source = null;
+        try {
+            client.setSoTimeout(SOCKET_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+            OutputStream out = client.getOutputStream();
+
+            String request = in.readLine();
+            if(request == null){
+                return;
+            }
+            String[] parts = request.split(" ");
+            String range = null;
+            String line;
+            while((line = in.readLine()) != null && !line.isEmpty()){
+                int colon = line.indexOf(':');
+                if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")){
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+
+            if(parts.length < 2 || !(parts[0].equals("GET") || parts[0].equals("HEAD"))){
+                writeHead(out, "405 Method Not Allowed", -1, null);
+                return;
+            }
+            boolean head = parts[0].equals("HEAD");
+
+            String uri = resolve(parts[1]);
+            if(uri == null){
+                writeHead(out, "404 Not Found", -1, null);
+                return;
+            }
+
+            try {
+                source = opener.open(uri);
+            } catch (FileNotFoundException e) {
+                writeHead(out, "404 Not Found", -1, null);
+                return;
+            }
+
+            long length = source.length();
+            long from = 0;
+            long to = length - 1;
+            boolean partial = false;
+            if(range != null && range.startsWith("bytes=") && range.indexOf(',') < 0){
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+                try {
+                    if(dash == 0){
+                        from = Math.max(0, length - Long.parseLong(spec.substring(1))); // the last n bytes
+                    } else if(dash > 0){
+                        from = Long.parseLong(spec.substring(0, dash));
+                        if(dash < spec.length() - 1){
+                            to = Math.min(to, Long.parseLong(spec.substring(dash + 1)));
+                        }
+                    }
+                    partial = true;
+                } catch (NumberFormatException e) {
+                    // not a range we understand, send the whole thing
+                }
+            }
+
+            if(from >= length || from > to){
+                writeHead(out, "416 Range Not Satisfiable", 0, "bytes */" + length);
+                return;
+            }
+
+            long count = to - from + 1;
+            if(partial){
+                writeHead(out, "206 Partial Content", count, "bytes " + from + "-" + to + "/" + length);
+            } else {
+                writeHead(out, "200 OK", count, null);
+            }
+
+            if(!head){
+                copy(source, from, count, out);
+            }
+
+        } catch (SocketException e) {
+            // the player seeked or closed, that's the usual way a response ends
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "stream timed out: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "exception serving stream", e);
+        } catch (InterruptedException e) {
+            // stopping
+        } finally {
+            if(source != null){
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing stream source", e);
+                }
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing stream connection", e);
+            }
+        }
+    }
+
+    /**
+     * @param path /token/name
+     */
+    private String resolve(String path){
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('/', start);
+        return tokens.get(path.substring(start, (end < 0) ? path.length() : end));
+    }
+
+    private static void copy(Source source, long from, long count, OutputStream out) throws IOException, InterruptedException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        FileChannel channel = source.getChannel();
+
+        long pos = from;
+        long end = from + count;
+        while(pos < end){
+            source.want(pos);
+            long available = source.awaitAvailable(pos, READ_TIMEOUT);
+            if(available <= pos){
+                throw new InterruptedIOException("Nothing written at " + pos + " for " + READ_TIMEOUT + "ms");
+            }
+
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), Math.min(available, end) - pos));
+            int read = channel.read(buf, pos);
+            if(read < 0){
+                throw new IOException("File ended at " + pos);
+            }
+            out.write(bytes, 0, read);
+            pos += read;
+        }
+        out.flush();
+    }
+
+    private static void writeHead(OutputStream out, String status, long length, String contentRange) throws IOException {
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Connection: close\r\n");
+        if(length > -1){
+            head.append("Content-Type: ").append(CONTENT_TYPE).append("\r\n")
+                    .append(String.format(Locale.US, "Content-Length: %d\r\n", length));
+        }
+        if(contentRange != null){
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        out.write(head.append("\r\n").toString().getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * What the server reads a download from, opened for each request.
+     */
+    public interface Source {
+        long length();
+        FileChannel getChannel();
+
+        /**
+         * Block until the byte at offset is written or the timeout passes.
+         * @return end of the run of written bytes from offset, offset itself if it timed out
+         */
+        long awaitAvailable(long offset, long timeoutMs) throws InterruptedException;
+
+        /**
+         * The player is reading at offset.
+         */
+        void want(long offset);
+
+        void close() throws IOException;
+    }
+
+    public interface Opener {
+        /**
+         * @throws FileNotFoundException if there's nothing of the download to stream
+         */
+        Source open(String uri) throws IOException;
+    }
+
+}
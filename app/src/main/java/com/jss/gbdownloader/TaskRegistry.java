@@ -0,0 +1,187 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Every download the service knows about that hasn't finished, keyed by uri. Lookups are a
+ * single map get and each entry's state is an atomic, so status checks from the binder never
+ * wait on the download threads. A task takes its own entry out when it ends, so nothing has
+ * to sweep for finished ones.
+ */
+public class TaskRegistry {
+
+    public static final int QUEUED = 0;
+    public static final int RUNNING = 1;
+    public static final int PAUSED = 2;
+    public static final int HELD = 3;
+    public static final int ENDED = 4;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Add a new entry for the uri, QUEUED with no future yet.
+     * @return the entry, or null if the uri already has one
+     */
+    public Entry register(String uri){
+        Entry entry = new Entry(uri);
+        return (entries.putIfAbsent(uri, entry) == null) ? entry : null;
+    }
+
+    /**
+     * @return the uri's entry, or null if there's nothing pending for it
+     */
+    public Entry get(String uri){
+        return entries.get(uri);
+    }
+
+    public boolean contains(String uri){
+        return entries.containsKey(uri);
+    }
+
+    /**
+     * @return the uri's state, or ENDED if there's nothing pending for it
+     */
+    public int getState(String uri){
+        Entry entry = entries.get(uri);
+        return (entry == null) ? ENDED : entry.getState();
+    }
+
+    /**
+     * A task is returning. Paused and held tasks are still pending, they just aren't running
+     * right now, so only a task that was RUNNING comes out. A run that was paused and has
+     * already been resumed as a new run leaves the entry to that one.
+     * @param run what the entry's start() gave the returning run
+     * @return true if it was taken out
+     */
+    public boolean ended(Entry entry, int run){
+        synchronized (entry){
+            if(entry.run != run){
+                return false;
+            }
+            return entry.compareAndSetState(RUNNING, ENDED) && entries.remove(entry.uri, entry);
+        }
+    }
+
+    /**
+     * @return false if the uri has moved on from this run, to a later run of the entry or to
+     * another entry enqueued after it was cancelled. What's kept per uri is theirs then.
+     */
+    public boolean isCurrent(Entry entry, int run){
+        Entry current = entries.get(entry.uri);
+        if(current != null && current != entry){
+            return false;
+        }
+        synchronized (entry){
+            return entry.run == run;
+        }
+    }
+
+    /**
+     * Take an entry out whatever its state, for when it's cancelled.
+     */
+    public boolean remove(Entry entry){
+        entry.setState(ENDED);
+        return entries.remove(entry.uri, entry);
+    }
+
+    public boolean isEmpty(){
+        return entries.isEmpty();
+    }
+
+    /**
+     * Cancel and take out every entry.
+     */
+    public void cancelAll(){
+        for(Entry entry : entries.values()){
+            Future<String> future = entry.getFuture();
+            remove(entry);
+            if(future != null){
+                future.cancel(true);
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String uri;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        // pausing or holding a task swaps in a new future for it
+        private final AtomicReference<Future<String>> future = new AtomicReference<>();
+        // counts the times it's started, guarded by the entry
+        private int run = 0;
+
+        Entry(String uri){
+            this.uri = uri;
+        }
+
+        public String getUri(){
+            return uri;
+        }
+
+        public int getState(){
+            return state.get();
+        }
+
+        public void setState(int newState){
+            state.set(newState);
+        }
+
+        /**
+         * @return the state before, set to newState
+         */
+        public int getAndSetState(int newState){
+            return state.getAndSet(newState);
+        }
+
+        public boolean compareAndSetState(int expected, int newState){
+            return state.compareAndSet(expected, newState);
+        }
+
+        /**
+         * A run of the task is starting, QUEUED goes to RUNNING. A pause or hold between
+         * dispatch and here leaves the state alone.
+         * @return which run this is, for ended and isCurrent
+         */
+        public synchronized int start(){
+            compareAndSetState(QUEUED, RUNNING);
+            return ++run;
+        }
+
+        public Future<String> getFuture(){
+            return future.get();
+        }
+
+        public void setFuture(Future<String> future){
+            this.future.set(future);
+        }
+
+        /**
+         * @return false if it already had one, which is kept
+         */
+        public boolean setFutureIfUnset(Future<String> future){
+            return this.future.compareAndSet(null, future);
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.aidl;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Where a download stands, as seen by the service at the time it was asked. Handed back in
+ * batches so a list of rows costs one binder call.
+ */
+public class DownloadStatus implements Parcelable {
+
+    public static final int NONE = 0;       // not queued, nothing on disk
+    public static final int PARTIAL = 1;    // not queued, a partial is on disk
+    public static final int QUEUED = 2;     // waiting for a slot
+    public static final int RUNNING = 3;
+    public static final int PAUSED = 4;
+    public static final int DOWNLOADED = 5;
+    public static final int HELD = 6;       // queued, but held back until there's room for it, see reason
+
+    public final String uri;
+    public final int state;
+    public final long done;     // bytes so far, -1 if unknown
+    public final long total;    // -1 if unknown
+    public final long rate;     // bytes per second, only while running
+    public final String reason; // why it's HELD, otherwise null
+
+    public DownloadStatus(String uri, int state, long done, long total, long rate){
+        this(uri, state, done, total, rate, null);
+    }
+
+    public DownloadStatus(String uri, int state, long done, long total, long rate, String reason){
+        this.uri = uri;
+        this.state = state;
+        this.done = done;
+        this.total = total;
+        this.rate = rate;
+        this.reason = reason;
+    }
+
+    protected DownloadStatus(Parcel in){
+        uri = in.readString();
+        state = in.readInt();
+        done = in.readLong();
+        total = in.readLong();
+        rate = in.readLong();
+        reason = in.readString();
+    }
+
+    /**
+     * @return true if the service has it, whether it's waiting, running or paused
+     */
+    public boolean isQueued(){
+        return state == QUEUED || state == RUNNING || state == PAUSED || state == HELD;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(uri);
+        dest.writeInt(state);
+        dest.writeLong(done);
+        dest.writeLong(total);
+        dest.writeLong(rate);
+        dest.writeString(reason);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<DownloadStatus> CREATOR = new Creator<DownloadStatus>() {
+        @Override
+        public DownloadStatus createFromParcel(Parcel in) {
+            return new DownloadStatus(in);
+        }
+
+        @Override
+        public DownloadStatus[] newArray(int size) {
+            return new DownloadStatus[size];
+        }
+    };
+
+}
@@ -19,17 +19,18 @@
 
 package com.jss.gbdownloader.model;
 
-import com.jss.gbdownloader.net.NetUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.jss.gbdownloader.net.NetUtils;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
-import java.util.Set;
 
 
 public class GBVideoInfo {
@@ -38,19 +39,89 @@ public class GBVideoInfo {
     private String title;
     private String desc;
     private String length;
+    private int lengthSeconds = -1;
     private HashMap<NetUtils.VidQuality, URI> videoUrls;
     private boolean premium;
     private int qualPos = 0;
 
-    public GBVideoInfo(JSONObject json, String qualStr) throws JSONException, URISyntaxException {
-        JSONObject imgObj = json.getJSONObject("image");
-        imageUrl = new URI(imgObj.getString("small_url"));
+    private GBVideoInfo(){
+    }
+
+    /**
+     * Read one video object off the reader, in the one pass with nothing kept but the fields.
+     * @param quals the quality fields that were asked for
+     * @return the video, or null if it had no usable image url (the rest of it is still consumed)
+     */
+    public static GBVideoInfo read(JsonReader reader, NetUtils.VidQuality[] quals) throws IOException {
+        GBVideoInfo info = new GBVideoInfo();
+        info.videoUrls = new HashMap<>(quals.length);
+        String imageUrl = null;
+
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(reader.peek() == JsonToken.NULL){
+                reader.nextNull();
+                continue;
+            }
 
-        title = json.getString("name");
-        desc = json.getString("deck");
-        length = json.getString("length_seconds");
+            NetUtils.VidQuality qual = NetUtils.VidQuality.from(name);
+            if(name.equals("image")){
+                imageUrl = readSmallUrl(reader);
+            } else if(name.equals("name")){
+                info.title = reader.nextString();
+            } else if(name.equals("deck")){
+                info.desc = reader.nextString();
+            } else if(name.equals("length_seconds")){
+                info.setLength(reader.nextString());
+            } else if(name.equals("premium")){
+                info.premium = reader.nextBoolean();
+            } else if(qual != null && Arrays.asList(quals).contains(qual)){
+                String url = reader.nextString();
+                if(!url.isEmpty()){
+                    try {
+                        info.videoUrls.put(qual, new URI(url));
+                    } catch (URISyntaxException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(imageUrl == null){
+            return null;
+        }
+        try {
+            info.imageUrl = new URI(imageUrl);
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return info;
+    }
+
+    private static String readSmallUrl(JsonReader reader) throws IOException {
+        String url = null;
+        reader.beginObject();
+        while(reader.hasNext()){
+            if(reader.nextName().equals("small_url") && reader.peek() == JsonToken.STRING){
+                url = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return url;
+    }
+
+    private void setLength(String seconds){
+        length = seconds;
         if(!length.isEmpty()){
             int sec = Integer.parseInt(length);
+            lengthSeconds = sec;
             int hrs = sec / 3600; sec %= 3600;
             int min = sec / 60; sec %= 60;
 
@@ -62,21 +133,6 @@ public class GBVideoInfo {
             }
 
         }
-
-        // handle more than one uri
-        String[] quals = qualStr.split(",");
-        videoUrls = new HashMap<>(quals.length);
-
-        for(String qual : quals) {
-            if(qual != null) {
-                String url = json.getString(qual);
-                if(!url.isEmpty() && !url.equals("null")) {
-                    videoUrls.put(NetUtils.VidQuality.from(qual), new URI(url));
-                }
-            }
-        }
-
-        premium = json.getBoolean("premium");
     }
 
     public URI getImageUrl() {
@@ -95,20 +151,46 @@ public class GBVideoInfo {
         return length;
     }
 
+    public int getLengthSeconds() {
+        return lengthSeconds;
+    }
+
+    /**
+     * @return the qualities there are urls for, best first
+     */
     public ArrayList<NetUtils.VidQuality> getVidQuals() {
-        Set<NetUtils.VidQuality> keys = videoUrls.keySet();
-        return new ArrayList<>(keys);
+        ArrayList<NetUtils.VidQuality> list = new ArrayList<>(videoUrls.size());
+        NetUtils.VidQuality[] all = NetUtils.VidQuality.values();
+        for(int i = all.length - 1; i >= 0; i--){
+            if(videoUrls.containsKey(all[i])){
+                list.add(all[i]);
+            }
+        }
+        return list;
     }
 
+    /**
+     * @return the qualities there are urls for, best first, after auto if there's more than one
+     */
     public ArrayList<String> getVidQualsStrings() {
-        Set<NetUtils.VidQuality> keys = videoUrls.keySet();
-        ArrayList<String> list = new ArrayList<>(keys.size());
-        for(NetUtils.VidQuality q : keys){
+        ArrayList<NetUtils.VidQuality> quals = getVidQuals();
+        ArrayList<String> list = new ArrayList<>(quals.size() + 1);
+        if(quals.size() > 1){
+            list.add(NetUtils.VidQuality.AUTO.getQual());
+        }
+        for(NetUtils.VidQuality q : quals){
             list.add(q.getQual());
         }
         return list;
     }
 
+    /**
+     * @return bytes going by the length and the quality's usual bitrate, -1 if there's no telling
+     */
+    public long getEstimatedSize(NetUtils.VidQuality qual) {
+        return qual.estimateSize(lengthSeconds);
+    }
+
     public void setQualPos(int pos) {
         qualPos = pos;
     }
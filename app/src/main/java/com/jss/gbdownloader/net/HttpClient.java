@@ -0,0 +1,239 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Where every request in the app gets its connection, the api, thumbnails and downloads alike.
+ * HttpsURLConnection already pools keep-alive connections per host, but only ones whose
+ * response was read to the end and closed, disconnect() closes the socket instead. So requests
+ * open through here and give their connection back with release(), and only abort() a
+ * connection that's broken or has a body too big to be worth reading out.
+ *
+ * All connections share one SSLSocketFactory. The pool is keyed on it, and its session cache
+ * lets a new connection to a host resume the TLS session of an earlier one instead of doing
+ * the full handshake.
+ */
+public final class HttpClient {
+
+    private static final String TAG = HttpClient.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+    // idle connections kept per the platform pool, and for how long. Downloads hold up to a
+    // few ranges per file open at once, thumbnails and the api want a couple more on top
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_MS = 2 * 60 * 1000;
+    // TLS sessions kept for resumption
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT_S = 60 * 60;
+    // most left over body release() reads out to keep a connection, past that it's cheaper to reconnect
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private static final SSLSocketFactory sslSocketFactory;
+
+    static {
+        // read by the platform pool when it's first made, so before the first connection
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_MS));
+
+        SSLSocketFactory factory;
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+            factory = context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Couldn't set up TLS context, using the default", e);
+            factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        sslSocketFactory = factory;
+    }
+
+    private HttpClient(){
+    }
+
+    /**
+     * Timeouts for connections opened without their own, in ms.
+     */
+    public static void setTimeouts(int connect, int read){
+        connectTimeout = connect;
+        readTimeout = read;
+    }
+
+    public static int getConnectTimeout(){
+        return connectTimeout;
+    }
+
+    public static int getReadTimeout(){
+        return readTimeout;
+    }
+
+    public static HttpsURLConnection open(String url, String method) throws IOException {
+        return open(url, method, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Open a connection, nothing's sent until it's connected or its response is asked for.
+     * @param connectTimeout ms, 0 for the default
+     * @param readTimeout ms, 0 for the default
+     */
+    public static HttpsURLConnection open(String url, String method, int connectTimeout, int readTimeout) throws IOException {
+        HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
+        conn.setSSLSocketFactory(sslSocketFactory);
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout((connectTimeout > 0) ? connectTimeout : HttpClient.connectTimeout);
+        conn.setReadTimeout((readTimeout > 0) ? readTimeout : HttpClient.readTimeout);
+        return conn;
+    }
+
+    /**
+     * Ask for the response compressed. Setting Accept-Encoding ourselves turns off the
+     * platform's transparent gzip, so the response has to be read through openBody().
+     */
+    public static void acceptCompressed(HttpURLConnection conn){
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    }
+
+    /**
+     * The response body, decoded as it's read if it came compressed.
+     * @param counter counts the bytes before and after decoding, can be null
+     */
+    public static InputStream openBody(HttpURLConnection conn, TransferCounter counter) throws IOException {
+        InputStream in = conn.getInputStream();
+        if(counter != null){
+            in = counter.countWire(in);
+        }
+
+        String encoding = conn.getContentEncoding();
+        if("gzip".equalsIgnoreCase(encoding)){
+            in = new GZIPInputStream(in);
+        } else if("deflate".equalsIgnoreCase(encoding)){
+            in = openDeflate(in);
+        }
+
+        return (counter != null) ? counter.countBody(in) : in;
+    }
+
+    /**
+     * deflate is meant to be zlib wrapped, but some servers send it raw. A zlib header is a
+     * method of 8 in the low bits of the first byte and a check that makes the first two a
+     * multiple of 31.
+     */
+    private static InputStream openDeflate(InputStream in) throws IOException {
+        PushbackInputStream peek = new PushbackInputStream(in, 2);
+        int b0 = peek.read();
+        int b1 = peek.read();
+        if(b1 > -1){
+            peek.unread(b1);
+        }
+        if(b0 > -1){
+            peek.unread(b0);
+        }
+
+        boolean zlib = b0 > -1 && b1 > -1 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(peek, inflater) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end(); // not ended for us when it's passed in
+            }
+        };
+    }
+
+    /**
+     * Done with the connection, read out whatever's left of its response and close it so the
+     * socket goes back to the pool. Disconnects if that can't be done cheaply. Safe to call on
+     * a connection that was already released or aborted, or null.
+     */
+    public static void release(HttpURLConnection conn){
+        if(conn == null){
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            try {
+                in = conn.getInputStream();
+            } catch (IOException e) {
+                in = conn.getErrorStream(); // 4xx and 5xx bodies can be read out the same
+            }
+
+            if(in != null && drain(in)){
+                in.close();
+                return;
+            }
+        } catch (IOException e) {
+            // broken or already closed, nothing to give back
+        }
+
+        conn.disconnect();
+    }
+
+    /**
+     * Close the connection for good, for one that failed or is being given up on partway.
+     */
+    public static void abort(HttpURLConnection conn){
+        if(conn != null){
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return true if the stream ended within MAX_DRAIN bytes
+     */
+    private static boolean drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        long drained = 0;
+        int read;
+        while((read = in.read(buf)) > -1){
+            drained += read;
+            if(drained > MAX_DRAIN){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
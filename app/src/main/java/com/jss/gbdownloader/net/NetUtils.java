@@ -42,20 +42,31 @@ public class NetUtils {
     public static ConcurrentHashMap<String, Bitmap> bitmapCache = new ConcurrentHashMap<>();
 
     public enum VidQuality {
-        ALL("low_url,high_url,hd_url"),
-        LOW("low_url"),
-        HIGH("high_url"),
-        HD("hd_url");
+        ALL("low_url,high_url,hd_url", 0),
+        LOW("low_url", 800),
+        HIGH("high_url", 1800),
+        HD("hd_url", 3200),
+        // not a field in the api, the service picks one of the others by how fast downloads are going
+        AUTO("auto", 0);
 
         private String qVal;
-        VidQuality(String q){
+        private int kbps;
+        VidQuality(String q, int kbps){
             qVal = q;
+            this.kbps = kbps;
         }
 
         public String getQual() {
             return qVal;
         }
 
+        /**
+         * @return a rough file size from the usual bitrate of the quality, -1 if there's no telling
+         */
+        public long estimateSize(int seconds) {
+            return (kbps > 0 && seconds > 0) ? (long) seconds * kbps * 1000 / 8 : -1;
+        }
+
         public static VidQuality from(String str) {
             for (VidQuality q : VidQuality.values()){
                 if(q.getQual().equals(str)) {
@@ -132,18 +143,31 @@ public class NetUtils {
     public static void getImageForView(ImageView view, URI uri){
         String uriString = uri.toString();
 
+        //whatever the view was fetching before isn't what it shows now
+        view.setTag(uriString);
+
         if(bitmapCache.containsKey(uriString)){
+            RestRequestor.cancelImgQuery(view);
             view.setImageBitmap(bitmapCache.get(uriString));
         } else {
             //fetch
             RestRequestor.getImgQuery(
                     new ImgDataCallback(uri.toString(), view),
                     uriString,
-                    "image/*");
+                    "image/*",
+                    view);
         }
 
     }
 
+    /**
+     * The view's gone off screen, don't bother fetching its image.
+     */
+    public static void cancelImageForView(ImageView view){
+        view.setTag(null);
+        RestRequestor.cancelImgQuery(view);
+    }
+
     public static class ImgDataCallback implements RestRequest.RestCallback {
 
         private String urlKey;
@@ -167,7 +191,10 @@ public class NetUtils {
                         MainActivity.handler.post(new Runnable() {
                             @Override
                             public void run() {
-                                view.setImageBitmap(bitmap);
+                                //a recycled view may be showing another row by now
+                                if(urlKey.equals(view.getTag())){
+                                    view.setImageBitmap(bitmap);
+                                }
                             }
                         });
                     }
@@ -28,7 +28,6 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -52,12 +51,7 @@ public class RawDataRequest extends RestRequest {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
         try {
-            URL url = new URL(this.url);
-            conn = (HttpsURLConnection) url.openConnection();
-            conn.setRequestMethod(method.toString());
-            // Set connection timeout and read timeout value.
-            conn.setConnectTimeout(connectTimeout);
-            conn.setReadTimeout(readTimeout);
+            conn = HttpClient.open(this.url, method.toString(), connectTimeout, readTimeout);
 
             if( method == ReqMethod.GET ){
                 conn.setRequestProperty("Accept", contentType);
@@ -75,7 +69,9 @@ public class RawDataRequest extends RestRequest {
             responseCode = conn.getResponseCode();
             responseMessage = conn.getResponseMessage();
 
-            conn.disconnect();
+            // read to the end, so the connection goes back to the pool for the next request
+            HttpClient.release(conn);
+            conn = null;
 
         } catch (SocketTimeoutException e) {
             Log.e(TAG, "Timeout: " + url, e);
@@ -88,9 +84,7 @@ public class RawDataRequest extends RestRequest {
         } catch (IOException e) {
             Log.e(TAG, "IO Exception: " + url, e);
         } finally {
-            if(conn != null){
-                conn.disconnect();
-            }
+            HttpClient.abort(conn); // only still set if it failed partway
         }
 
         callback.OnResult(new RawDataResult(responseCode, responseMessage, baos.toByteArray()));
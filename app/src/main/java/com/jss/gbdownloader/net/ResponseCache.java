@@ -0,0 +1,410 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.net;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On disk cache of api responses, for revalidating with a conditional GET instead of fetching
+ * a page again. Entries are keyed on the path and query with the api key left out and the
+ * parameters sorted, so the same page is the same entry whatever order it was asked in and
+ * whoever's key asked. Only responses with an ETag or Last-Modified are kept, there's nothing
+ * to revalidate the rest with.
+ *
+ * Bodies are written out as they're read, nothing holds a whole one in memory. Whatever a body
+ * was parsed into is kept alongside its entry, so a 304 hands back the same results without
+ * reading or parsing anything.
+ */
+public class ResponseCache {
+
+    private static final String TAG = ResponseCache.class.getSimpleName();
+
+    private static final String ETAG_HEADER = "ETag: ";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified: ";
+
+    private final File dir;
+    private final int maxEntries;
+    // entries looked up or stored this run, whatever's on disk is loaded the first time it's asked for
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries oldest entries past this many are dropped when a new one is stored
+     */
+    public ResponseCache(File dir, int maxEntries){
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        if(!dir.exists() && !dir.mkdirs()){
+            Log.e(TAG, "Couldn't make cache dir " + dir);
+        }
+    }
+
+    /**
+     * @return the cache key for a url, null if it can't be parsed
+     */
+    public static String key(String url){
+        try {
+            URI uri = new URI(url);
+            String query = uri.getRawQuery();
+            StringBuilder key = new StringBuilder(uri.getRawPath());
+            if(query != null){
+                String[] params = query.split("&");
+                Arrays.sort(params);
+                char sep = '?';
+                for(String param : params){
+                    if(param.isEmpty() || param.startsWith("api_key=")){
+                        continue;
+                    }
+                    key.append(sep).append(param);
+                    sep = '&';
+                }
+            }
+            return key.toString();
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "Couldn't make a cache key for " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the entry stored under key, or null
+     */
+    public Entry get(String key){
+        if(key == null){
+            return null;
+        }
+
+        Entry entry = entries.get(key);
+        if(entry == null){
+            entry = load(key);
+            if(entry != null){
+                entries.putIfAbsent(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Start storing a 200 response, if it came with something to revalidate it by. The body is
+     * written out as it's read through the returned Pending's stream.
+     * @return null if it won't be stored
+     */
+    public Pending begin(String key, HttpURLConnection conn){
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if(key == null || (etag == null && lastModified == null)){
+            return null;
+        }
+
+        Entry entry = new Entry(key, etag, lastModified);
+        File tmp = new File(getFile(key).getPath() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                if(etag != null){
+                    out.write((ETAG_HEADER + etag + "\n").getBytes("UTF-8"));
+                }
+                if(lastModified != null){
+                    out.write((LAST_MODIFIED_HEADER + lastModified + "\n").getBytes("UTF-8"));
+                }
+                out.write('\n');
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            return new Pending(entry, tmp, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't start cached response for " + key, e);
+            if(tmp.exists() && !tmp.delete()){
+                Log.e(TAG, "Couldn't delete " + tmp);
+            }
+            return null;
+        }
+    }
+
+    public void remove(String key){
+        entries.remove(key);
+        File file = getFile(key);
+        if(file.exists() && !file.delete()){
+            Log.e(TAG, "Couldn't delete cached response " + file);
+        }
+    }
+
+    /**
+     * @return the stored body, positioned past the headers, or null if it's gone
+     */
+    public InputStream openBody(Entry entry){
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFile(entry.key)));
+
+            // skip the headers, they're already in the entry
+            int prev = -1;
+            int b;
+            while((b = in.read()) > -1){
+                if(b == '\n' && prev == '\n'){
+                    return in;
+                }
+                prev = b;
+            }
+            throw new IOException("No body");
+
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read cached response for " + entry.key, e);
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e1) {
+                    Log.e(TAG, "exception closing cached response", e1);
+                }
+            }
+            return null;
+        }
+    }
+
+    private Entry load(String key){
+        File file = getFile(key);
+        if(!file.exists()){
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String etag = null;
+            String lastModified = null;
+            String line;
+            while((line = reader.readLine()) != null && !line.isEmpty()){
+                if(line.startsWith(ETAG_HEADER)){
+                    etag = line.substring(ETAG_HEADER.length());
+                } else if(line.startsWith(LAST_MODIFIED_HEADER)){
+                    lastModified = line.substring(LAST_MODIFIED_HEADER.length());
+                }
+            }
+            return (etag == null && lastModified == null) ? null : new Entry(key, etag, lastModified);
+
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't load cached response for " + key, e);
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Drop the least recently stored entries past maxEntries.
+     */
+    private synchronized void trim(){
+        File[] files = dir.listFiles();
+        if(files == null || files.length <= maxEntries){
+            return;
+        }
+
+        long[] modified = new long[files.length];
+        for(int i = 0; i < files.length; i++){
+            modified[i] = files[i].lastModified();
+        }
+        long[] sorted = modified.clone();
+        Arrays.sort(sorted);
+        long cutoff = sorted[files.length - maxEntries];
+
+        for(int i = 0; i < files.length; i++){
+            if(modified[i] < cutoff && !files[i].delete()){
+                Log.e(TAG, "Couldn't delete cached response " + files[i]);
+            }
+        }
+        // the memory copies go with their files, a missing file just means a full fetch next time
+        for(Entry entry : entries.values()){
+            if(!getFile(entry.key).exists()){
+                entries.remove(entry.key, entry);
+            }
+        }
+    }
+
+    private File getFile(String key){
+        return new File(dir, hash(key));
+    }
+
+    private static String hash(String key){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte b : digest){
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // both are always there
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static void closeQuietly(BufferedReader reader){
+        if(reader != null){
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing cached response", e);
+            }
+        }
+    }
+
+    /**
+     * A response on its way into the cache. Read it through tee(), then commit() once the
+     * whole body has been read, or abort() if it wasn't.
+     */
+    public class Pending {
+        private final Entry entry;
+        private final File tmp;
+        private final OutputStream out;
+        private boolean failed = false;
+
+        private Pending(Entry entry, File tmp, OutputStream out){
+            this.entry = entry;
+            this.tmp = tmp;
+            this.out = out;
+        }
+
+        /**
+         * @return the stream, writing out everything read through it
+         */
+        public InputStream tee(InputStream in){
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if(b > -1){
+                        write(new byte[]{ (byte) b }, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if(read > 0){
+                        write(b, off, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private void write(byte[] b, int off, int len){
+            if(failed){
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                // the response is still good, it just won't be cached
+                Log.e(TAG, "Couldn't write cached response for " + entry.key, e);
+                failed = true;
+            }
+        }
+
+        /**
+         * @param parsed what the body was parsed into, handed back as it is on a 304
+         * @return the stored entry, null if it couldn't be
+         */
+        public Entry commit(Object parsed){
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't write cached response for " + entry.key, e);
+                failed = true;
+            }
+            if(failed || !tmp.renameTo(getFile(entry.key))){
+                abort();
+                return null;
+            }
+
+            entry.parsed = parsed;
+            entries.put(entry.key, entry);
+            trim();
+            return entry;
+        }
+
+        public void abort(){
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing cached response", e);
+            }
+            if(tmp.exists() && !tmp.delete()){
+                Log.e(TAG, "Couldn't delete " + tmp);
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+        // what the body was parsed into, null until someone parses it
+        private volatile Object parsed;
+
+        private Entry(String key, String etag, String lastModified){
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Make the request conditional on the response being different from this one.
+         */
+        public void addConditions(HttpURLConnection conn){
+            if(etag != null){
+                conn.setRequestProperty("If-None-Match", etag);
+            }
+            if(lastModified != null){
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+
+        public Object getParsed(){
+            return parsed;
+        }
+
+        public void setParsed(Object parsed){
+            this.parsed = parsed;
+        }
+    }
+
+}
@@ -62,8 +62,9 @@ public abstract class RestRequest  implements Runnable {
 
         protected String url;
         protected RestRequest.ReqMethod method;
-        protected int readTimeout = 10000;
-        protected int connectTimeout = 10000;
+        // 0 for HttpClient's
+        protected int readTimeout = 0;
+        protected int connectTimeout = 0;
         protected RestCallback callback;
 
         /**
@@ -19,19 +19,70 @@
 
 package com.jss.gbdownloader.net;
 
+import android.content.Context;
 import android.util.Log;
 import android.util.Pair;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RestRequestor {
 
     private static String TAG = RestRequestor.class.getSimpleName();
 
-    private static ExecutorService netExec = Executors.newSingleThreadExecutor();
+    private static final String CACHE_DIR = "api";
+    private static final int MAX_CACHED_PAGES = 64;
+
+    // api pages stay on one thread, the adapter appends them in the order they finish
+    private static final int API_THREADS = 1;
+    // thumbnails are small and many, a few at once keeps a screenful from trickling in
+    private static final int IMG_THREADS = 4;
+    // thumbnails queued past this drop the oldest, their rows scrolled off long ago
+    private static final int MAX_QUEUED_IMGS = 48;
+    private static final long IDLE_SECONDS = 30;
+
+    // newest first, the most recently bound rows are the ones on screen
+    private static final Comparator<Runnable> IMG_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable a, Runnable b) {
+            long sa = ((ImgTask) a).seq;
+            long sb = ((ImgTask) b).seq;
+            return (sa > sb) ? -1 : ((sa == sb) ? 0 : 1);
+        }
+    };
+
+    private static final ThreadPoolExecutor apiExec = newExec(API_THREADS, new LinkedBlockingQueue<Runnable>());
+    private static final ThreadPoolExecutor imgExec = newExec(IMG_THREADS, new PriorityBlockingQueue<Runnable>(MAX_QUEUED_IMGS, IMG_ORDER));
+
+    private static final AtomicLong imgSeq = new AtomicLong();
+    // last image asked for by each view, so a rebound or recycled view can drop what it no longer shows
+    private static final ConcurrentHashMap<Object, ImgTask> imgTasks = new ConcurrentHashMap<>();
+
+    private static volatile ResponseCache responseCache;
+
+    /**
+     * Set up the response cache, api pages fetched before this aren't cached.
+     */
+    public static void init(Context context){
+        if(responseCache == null){
+            responseCache = new ResponseCache(new File(context.getCacheDir(), CACHE_DIR), MAX_CACHED_PAGES);
+        }
+    }
+
+    private static ThreadPoolExecutor newExec(int threads, BlockingQueue<Runnable> queue){
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS, queue);
+        exec.allowCoreThreadTimeOut(true);
+        return exec;
+    }
 
 /*    public static void shutdown(){
         netExec.shutdownNow();
@@ -44,7 +95,11 @@ public class RestRequestor {
 
 //region  queries
 
-    public static void getVidListQuery(final VidListRestRequest.RestCallback callback, String apiKey, int limit, int offset, NetUtils.VidQuality quality){
+    /**
+     * @param listener given the videos a few at a time as the page comes in, can be null
+     * @param callback given the whole page when it's done
+     */
+    public static void getVidListQuery(final VidListRestRequest.RestCallback callback, VidListParser.Listener listener, String apiKey, int limit, int offset, NetUtils.VidQuality quality){
 
         if(limit < 1 || limit > 100){
             limit = 100; //default per api
@@ -68,20 +123,84 @@ public class RestRequestor {
 
         //do the query
         VidListRestRequest request = (VidListRestRequest) new VidListRestRequest.Builder(callback, url, RestRequest.ReqMethod.GET, quality)
+                .setCache(responseCache)
+                .setListener(listener)
 //                .setConnectTimeout(10000)
 //                .setReadTimeout(10000)
                 .build();
 
-        netExec.execute(request);
+        apiExec.execute(request);
     }
 
-    public static void getImgQuery(final NetUtils.ImgDataCallback callback, String url, String contentType){
+    /**
+     * Queue an image fetch. The latest one queued goes first, and one for a tag that's still
+     * waiting is dropped when another comes in for the same tag.
+     * @param tag what the image is for, usually the view showing it, can be null
+     */
+    public static void getImgQuery(final NetUtils.ImgDataCallback callback, String url, String contentType, Object tag){
         Log.d(TAG,"GETTING: "+url);
 
         RawDataRequest request = (RawDataRequest) new RawDataRequest.Builder(callback, url, RestRequest.ReqMethod.GET, contentType)
                 .build();
 
-        netExec.execute(request);
+        ImgTask task = new ImgTask(request, tag, imgSeq.incrementAndGet());
+        if(tag != null){
+            ImgTask old = imgTasks.put(tag, task);
+            if(old != null){
+                imgExec.remove(old);
+            }
+        }
+
+        imgExec.execute(task);
+        trimImgQueue();
+    }
+
+    /**
+     * Drop the image fetch for a tag if it hasn't started yet.
+     */
+    public static void cancelImgQuery(Object tag){
+        ImgTask task = imgTasks.remove(tag);
+        if(task != null){
+            imgExec.remove(task);
+        }
+    }
+
+    private static void trimImgQueue(){
+        while(imgExec.getQueue().size() > MAX_QUEUED_IMGS){
+            ImgTask oldest = null;
+            for(Runnable r : imgExec.getQueue()){
+                ImgTask t = (ImgTask) r;
+                if(oldest == null || t.seq < oldest.seq){
+                    oldest = t;
+                }
+            }
+            if(oldest == null || !imgExec.remove(oldest)){
+                break; // a worker took it meanwhile
+            }
+            if(oldest.tag != null){
+                imgTasks.remove(oldest.tag, oldest);
+            }
+        }
+    }
+
+    private static class ImgTask implements Runnable {
+        final RawDataRequest request;
+        final Object tag;
+        final long seq;
+
+        ImgTask(RawDataRequest request, Object tag, long seq){
+            this.request = request;
+            this.tag = tag;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            if(tag != null){
+                imgTasks.remove(tag, this);
+            }
+            request.run();
+        }
     }
 
 //endregion
@@ -0,0 +1,126 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes a response took over the wire against what it decoded to, to see what compression is
+ * saving. One per request, with running totals across all of them.
+ */
+public class TransferCounter {
+
+    private static final AtomicLong totalWire = new AtomicLong();
+    private static final AtomicLong totalBody = new AtomicLong();
+
+    // only the thread reading the response moves these
+    private volatile long wire = 0;
+    private volatile long body = 0;
+
+    /**
+     * @param in the response as it came off the connection
+     */
+    public InputStream countWire(InputStream in){
+        return new CountingStream(in, true);
+    }
+
+    /**
+     * @param in the decoded response
+     */
+    public InputStream countBody(InputStream in){
+        return new CountingStream(in, false);
+    }
+
+    public long getWireBytes(){
+        return wire;
+    }
+
+    public long getBodyBytes(){
+        return body;
+    }
+
+    public static long getTotalWireBytes(){
+        return totalWire.get();
+    }
+
+    public static long getTotalBodyBytes(){
+        return totalBody.get();
+    }
+
+    @Override
+    public String toString(){
+        return String.format(Locale.US, "%d bytes for %d (%.0f%%), %d for %d in total",
+                wire, body, percent(wire, body), totalWire.get(), totalBody.get());
+    }
+
+    private static double percent(long part, long whole){
+        return (whole > 0) ? 100.0 * part / whole : 100;
+    }
+
+    private class CountingStream extends FilterInputStream {
+
+        private final boolean isWire;
+
+        CountingStream(InputStream in, boolean isWire){
+            super(in);
+            this.isWire = isWire;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b > -1){
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0){
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n){
+            if(isWire){
+                wire += n;
+                totalWire.addAndGet(n);
+            } else {
+                body += n;
+                totalBody.addAndGet(n);
+            }
+        }
+    }
+
+}
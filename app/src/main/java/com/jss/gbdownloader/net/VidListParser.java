@@ -0,0 +1,114 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.net;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.jss.gbdownloader.model.GBVideoInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a page of the video list straight off the response stream with a JsonReader. Each
+ * video is built as its object goes by, without the body ever being held as a string or a
+ * tree, and they're handed out in batches while the rest of the page is still coming in.
+ */
+public class VidListParser {
+
+    private static final String TAG = VidListParser.class.getSimpleName();
+
+    private final NetUtils.VidQuality[] quals;
+    private final int batchSize;
+    private final Listener listener;
+
+    /**
+     * @param quality the quality, or qualities for ALL, the page was asked for
+     * @param batchSize videos per call to the listener
+     * @param listener given each batch as it's read, can be null
+     */
+    public VidListParser(NetUtils.VidQuality quality, int batchSize, Listener listener){
+        String[] fields = quality.getQual().split(",");
+        quals = new NetUtils.VidQuality[fields.length];
+        for(int i = 0; i < fields.length; i++){
+            quals[i] = NetUtils.VidQuality.from(fields[i]);
+        }
+        this.batchSize = batchSize;
+        this.listener = listener;
+    }
+
+    /**
+     * @return every video on the page, including the ones already given to the listener
+     */
+    public ArrayList<GBVideoInfo> parse(InputStream in) throws IOException {
+        ArrayList<GBVideoInfo> vids = new ArrayList<>();
+        List<GBVideoInfo> batch = new ArrayList<>(batchSize);
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        reader.beginObject();
+        while(reader.hasNext()){
+            if(!reader.nextName().equals("results")){
+                reader.skipValue(); // status, paging, nothing we use
+                continue;
+            }
+
+            reader.beginArray();
+            while(reader.hasNext()){
+                GBVideoInfo info = GBVideoInfo.read(reader, quals);
+                if(info == null){
+                    Log.w(TAG, "Skipping video without an image");
+                    continue;
+                }
+
+                vids.add(info);
+                batch.add(info);
+                if(batch.size() >= batchSize){
+                    deliver(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        if(!batch.isEmpty()){
+            deliver(batch);
+        }
+        return vids;
+    }
+
+    private void deliver(List<GBVideoInfo> batch){
+        if(listener != null){
+            listener.onVids(batch);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread doing the parsing, the list is the listener's to keep.
+         */
+        void onVids(List<GBVideoInfo> vids);
+    }
+
+}
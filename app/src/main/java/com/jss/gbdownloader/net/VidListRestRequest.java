@@ -23,67 +23,95 @@ import android.util.Log;
 
 import com.jss.gbdownloader.model.GBVideoInfo;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import javax.net.ssl.HttpsURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
-import java.net.URISyntaxException;
-import java.net.URL;
 import java.util.ArrayList;
 
 public class VidListRestRequest extends RestRequest {
 
     private final static String TAG = VidListRestRequest.class.getSimpleName();
 
+    // videos handed to the listener at a time while a page is read
+    private static final int BATCH_SIZE = 10;
+
     private NetUtils.VidQuality quality;
+    private ResponseCache cache;
+    private VidListParser.Listener listener;
 
     private VidListRestRequest(Builder builder){
         super(builder);
         quality = builder.quality;
+        cache = builder.cache;
+        listener = builder.listener;
     }
 
 
     @Override
     public void run() {
         HttpsURLConnection conn = null;
-        StringBuilder result = new StringBuilder();
         int responseCode = -1;
         String responseMessage = "bad_result";
+        ArrayList<GBVideoInfo> vidInfos = null;
+        boolean fromCache = false;
+        TransferCounter counter = new TransferCounter();
+        VidListParser parser = new VidListParser(quality, BATCH_SIZE, listener);
+
+        String key = (cache != null && method == ReqMethod.GET) ? ResponseCache.key(url) : null;
+        ResponseCache.Entry entry = (key != null) ? cache.get(key) : null;
+        ResponseCache.Pending pending = null;
 
         try {
-            URL url = new URL(this.url);
-            conn = (HttpsURLConnection) url.openConnection();
-            conn.setRequestMethod(method.toString());
-            // Set connection timeout and read timeout value.
-            conn.setConnectTimeout(connectTimeout);
-            conn.setReadTimeout(readTimeout);
+            conn = HttpClient.open(this.url, method.toString(), connectTimeout, readTimeout);
 
             if( method == ReqMethod.GET ){
                 conn.setRequestProperty("Accept", "application/json");
+                HttpClient.acceptCompressed(conn);
+                if(entry != null){
+                    entry.addConditions(conn);
+                }
 
-                InputStream in = conn.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    result.append(line);
+                if(entry != null && conn.getResponseCode() == HttpsURLConnection.HTTP_NOT_MODIFIED){
+                    // same page as last time, hand back what it was parsed into then
+                    vidInfos = getCachedVids(entry, parser);
+                    if(vidInfos == null){
+                        cache.remove(key); // lost the body, the next request fetches it whole
+                    }
+                    fromCache = vidInfos != null;
+                } else {
+                    InputStream in = HttpClient.openBody(conn, counter);
+                    if(key != null){
+                        // written to the cache as the parser reads it
+                        pending = cache.begin(key, conn);
+                        if(pending != null){
+                            in = pending.tee(in);
+                        }
+                    }
+
+                    vidInfos = parser.parse(in);
+                    if(pending != null){
+                        pending.commit(vidInfos);
+                        pending = null;
+                    }
                 }
             }
 
             //grab the response code and message in case of failure
             responseCode = conn.getResponseCode();
             responseMessage = conn.getResponseMessage();
+            Log.d(TAG, "GOT " + url + ": " + counter);
+
+            if(fromCache){
+                responseCode = HttpsURLConnection.HTTP_OK; // as good as the response it was cached from
+            }
 
-            conn.disconnect();
+            // read to the end, so the connection goes back to the pool for the next request
+            HttpClient.release(conn);
+            conn = null;
 
         } catch (SocketTimeoutException e) {
             Log.e(TAG, "Timeout: " + url, e);
@@ -93,39 +121,48 @@ public class VidListRestRequest extends RestRequest {
             Log.e(TAG, "Malformed URL: " + url, e);
         } catch (FileNotFoundException e) {
             Log.d(TAG, "No Resource found at: " + url);
-        } catch (IOException e) {
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // JsonReader throws IllegalStateException on json that isn't shaped like a page
             Log.e(TAG, "IO Exception: " + url, e);
         } finally {
-            if(conn != null){
-                conn.disconnect();
+            if(pending != null){
+                pending.abort(); // only half read
             }
+            HttpClient.abort(conn); // only still set if it failed partway
         }
 
-        callback.OnResult(buildVidListResult(responseCode, responseMessage, result.toString()));
+        callback.OnResult(new VidListResult(responseCode, responseMessage,
+                (vidInfos != null) ? vidInfos : new ArrayList<GBVideoInfo>(), fromCache, counter));
     }
 
-    private VidListResult buildVidListResult(int resultCode, String resultMessage, String... result){
-//        Log.d(TAG, "CODE: " + resultCode + ":" + resultMessage + " - " + result);
-
-        ArrayList<GBVideoInfo> vidInfos = new ArrayList<>();
-
-        if(result != null && result.length == 1 && result[0] != null && !result[0].isEmpty()) {
-            //translate the json
-            try {
-                JSONObject req = new JSONObject(result[0]);
-                JSONArray json = req.getJSONArray("results");
-                for(int i = 0; i < json.length(); i++){
-                    vidInfos.add(new GBVideoInfo(json.getJSONObject(i), quality.getQual()));
-                }
-
-            } catch (JSONException e) {
-                e.printStackTrace();
-            } catch (URISyntaxException e) {
-                e.printStackTrace();
+    /**
+     * @return a copy of the list the cached response was parsed into, parsing it first if
+     * nothing has yet this run, or null if the body can't be read. Either way it goes to the
+     * listener same as a fresh page.
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<GBVideoInfo> getCachedVids(ResponseCache.Entry entry, VidListParser parser) throws IOException {
+        Object parsed = entry.getParsed();
+        if(parsed instanceof ArrayList){
+            // the caller's free to change its list, the cached one stays as it was
+            ArrayList<GBVideoInfo> vids = new ArrayList<>((ArrayList<GBVideoInfo>) parsed);
+            if(listener != null){
+                listener.onVids(new ArrayList<>(vids));
             }
+            return vids;
         }
 
-        return new VidListResult(resultCode, resultMessage, vidInfos);
+        InputStream in = cache.openBody(entry);
+        if(in == null){
+            return null;
+        }
+        try {
+            ArrayList<GBVideoInfo> vids = parser.parse(in);
+            entry.setParsed(new ArrayList<>(vids));
+            return vids;
+        } finally {
+            in.close();
+        }
     }
 
 
@@ -135,6 +172,8 @@ public class VidListRestRequest extends RestRequest {
     public static class Builder extends RestRequest.Builder{
 
         private NetUtils.VidQuality quality;
+        private ResponseCache cache;
+        private VidListParser.Listener listener;
 
         /**
          * Constructor for the RestRequest builder. URL and request method are required params.
@@ -147,6 +186,22 @@ public class VidListRestRequest extends RestRequest {
             this.quality = quality;
         }
 
+        /**
+         * @param cache revalidate against this cache instead of fetching pages it has, null for none
+         */
+        public Builder setCache(ResponseCache cache){
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * @param listener given the videos in batches as the page is read, before the result
+         */
+        public Builder setListener(VidListParser.Listener listener){
+            this.listener = listener;
+            return this;
+        }
+
         @Override
         public RestRequest build(){
             return new VidListRestRequest(VidListRestRequest.Builder.this);
@@ -156,10 +211,18 @@ public class VidListRestRequest extends RestRequest {
 
     public static class VidListResult extends RestResult {
         public ArrayList<GBVideoInfo> vidList;
+        // the server said nothing changed and the list came from the cache
+        public boolean fromCache;
+        // bytes over the wire and what they decoded to
+        public long wireBytes;
+        public long bodyBytes;
 
-        public VidListResult(int resultCode, String resultMessage, ArrayList<GBVideoInfo> vids){
+        public VidListResult(int resultCode, String resultMessage, ArrayList<GBVideoInfo> vids, boolean fromCache, TransferCounter counter){
             super(resultCode, resultMessage);
             vidList = vids;
+            this.fromCache = fromCache;
+            wireBytes = counter.getWireBytes();
+            bodyBytes = counter.getBodyBytes();
         }
     }
 
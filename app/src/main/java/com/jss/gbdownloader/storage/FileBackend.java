@@ -0,0 +1,141 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.storage;
+
+import android.net.Uri;
+import android.os.Environment;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plain files in the shared Download directory, for before scoped storage (API 28 and lower).
+ * A partial is the download's name plus ".partial", published with a rename.
+ */
+public class FileBackend implements StorageBackend {
+
+    private final File dir;
+
+    public FileBackend(){
+        dir = new File(Environment.getExternalStorageDirectory(), Environment.DIRECTORY_DOWNLOADS);
+    }
+
+    @Override
+    public long length(String name){
+        File file = new File(dir, name);
+        return file.exists() ? file.length() : -1;
+    }
+
+    @Override
+    public long partialLength(String name){
+        File file = getPartialFile(name);
+        return (file.exists() && file.canWrite()) ? file.length() : -1;
+    }
+
+    @Override
+    public Handle openPartial(String name, boolean truncate) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(getPartialFile(name), "rw");
+        if(truncate){
+            raf.setLength(0);
+        }
+
+        return new Handle() {
+            @Override
+            public FileChannel getReadChannel() {
+                return raf.getChannel();
+            }
+
+            @Override
+            public FileChannel getWriteChannel() {
+                return raf.getChannel();
+            }
+
+            @Override
+            public FileDescriptor getFD() throws IOException {
+                return raf.getFD();
+            }
+
+            @Override
+            public long length() throws IOException {
+                return raf.length();
+            }
+
+            @Override
+            public void setLength(long length) throws IOException {
+                raf.setLength(length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        };
+    }
+
+    @Override
+    public FileChannel openForRead(String name, boolean partial) throws IOException {
+        return new FileInputStream(partial ? getPartialFile(name) : new File(dir, name)).getChannel();
+    }
+
+    @Override
+    public boolean publish(String name){
+        return getPartialFile(name).renameTo(new File(dir, name));
+    }
+
+    @Override
+    public boolean unpublish(String name){
+        return new File(dir, name).renameTo(getPartialFile(name));
+    }
+
+    @Override
+    public boolean deletePartial(String name){
+        return getPartialFile(name).delete();
+    }
+
+    @Override
+    public boolean delete(String name){
+        return new File(dir, name).delete();
+    }
+
+    @Override
+    public long getUsableSpace(){
+        return dir.getUsableSpace();
+    }
+
+    @Override
+    public File getSidecarDir(){
+        return dir;
+    }
+
+    @Override
+    public Uri getPlayableUri(String name){
+        File file = new File(dir, name);
+        return file.exists() ? Uri.parse(file.getAbsolutePath()) : null;
+    }
+
+    private File getPartialFile(String name){
+        return new File(dir, name + ".partial");
+    }
+
+}
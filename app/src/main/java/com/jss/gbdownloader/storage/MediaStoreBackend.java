@@ -0,0 +1,387 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.storage;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads collection of the MediaStore, for scoped storage (API 29 and up). A partial is an
+ * item under the download's own name with IS_PENDING set, which keeps it out of other apps'
+ * sight until it's published by clearing the flag. Items are found again by the uri they were
+ * inserted as, not their name, which the MediaStore may have changed. Everything goes through the item's file
+ * descriptor, so the write path is the same positional FileChannel writes as plain files.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class MediaStoreBackend implements StorageBackend {
+
+    private static final String TAG = MediaStoreBackend.class.getSimpleName();
+
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_DOWNLOADS + "/";
+    private static final String DEFAULT_MIME_TYPE = "video/mp4";
+
+    private static final String SELECTION = MediaStore.MediaColumns.DISPLAY_NAME + "=? AND "
+            + MediaStore.MediaColumns.RELATIVE_PATH + "=? AND "
+            + MediaStore.MediaColumns.IS_PENDING + "=?";
+
+    private static final String ITEM_SUFFIX = ".item";
+
+    private static final String[] PROJECTION = new String[]{
+            MediaStore.MediaColumns._ID, MediaStore.MediaColumns.SIZE, MediaStore.MediaColumns.IS_PENDING };
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final Uri collection = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
+
+    // the item each download was inserted as, by name, and in a sidecar so it survives a restart.
+    // An insert that collides with an item the app doesn't own anymore (after a reinstall) gets
+    // renamed, so the name asked for can't be used to find it again
+    private final ConcurrentHashMap<String, Uri> items = new ConcurrentHashMap<>();
+
+    public MediaStoreBackend(Context context){
+        this.context = context.getApplicationContext();
+        this.resolver = this.context.getContentResolver();
+    }
+
+    @Override
+    public long length(String name){
+        Item item = find(name, false);
+        return (item == null) ? -1 : item.size;
+    }
+
+    @Override
+    public long partialLength(String name){
+        Item item = find(name, true);
+        if(item == null){
+            return -1;
+        }
+
+        // SIZE isn't kept up to date while the item is pending, ask the file itself
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = resolver.openFileDescriptor(item.uri, "r");
+            return (pfd == null) ? -1 : pfd.getStatSize();
+        } catch (FileNotFoundException e) {
+            return -1;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    @Override
+    public Handle openPartial(String name, boolean truncate) throws IOException {
+        Item item = find(name, true);
+        final Uri uri = (item != null) ? item.uri : insert(name);
+        if(uri == null){
+            throw new IOException("Couldn't create pending download " + name);
+        }
+
+        final ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, truncate ? "rwt" : "rw");
+        if(pfd == null){
+            throw new IOException("Couldn't open pending download " + name);
+        }
+
+        // separate streams for each direction, reads and writes are positional so they don't share an offset
+        final FileChannel reader = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+        final FileChannel writer = new FileOutputStream(pfd.getFileDescriptor()).getChannel();
+
+        return new Handle() {
+            @Override
+            public FileChannel getReadChannel() {
+                return reader;
+            }
+
+            @Override
+            public FileChannel getWriteChannel() {
+                return writer;
+            }
+
+            @Override
+            public FileDescriptor getFD() {
+                return pfd.getFileDescriptor();
+            }
+
+            @Override
+            public long length() {
+                return pfd.getStatSize();
+            }
+
+            @Override
+            public void setLength(long length) throws IOException {
+                try {
+                    Os.ftruncate(pfd.getFileDescriptor(), length);
+                } catch (ErrnoException e) {
+                    throw new IOException("Couldn't set length of " + uri, e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                pfd.close();
+            }
+        };
+    }
+
+    @Override
+    public FileChannel openForRead(String name, boolean partial) throws IOException {
+        Item item = find(name, partial);
+        if(item == null){
+            throw new FileNotFoundException("No download " + name);
+        }
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(item.uri, "r");
+        if(pfd == null){
+            throw new FileNotFoundException("Couldn't open download " + name);
+        }
+        // the auto close stream closes the descriptor along with the channel
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+    }
+
+    @Override
+    public boolean publish(String name){
+        Item item = find(name, true);
+        if(item == null){
+            return false;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        return resolver.update(item.uri, values, null, null) > 0;
+    }
+
+    @Override
+    public boolean unpublish(String name){
+        Item item = find(name, false);
+        if(item == null){
+            return false;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        return resolver.update(item.uri, values, null, null) > 0;
+    }
+
+    @Override
+    public boolean deletePartial(String name){
+        return delete(find(name, true), name);
+    }
+
+    @Override
+    public boolean delete(String name){
+        return delete(find(name, false), name);
+    }
+
+    private boolean delete(Item item, String name){
+        if(item == null || resolver.delete(item.uri, null, null) < 1){
+            return false;
+        }
+        forgetItemUri(name);
+        return true;
+    }
+
+    @Override
+    public long getUsableSpace(){
+        // app files and shared downloads are on the same primary volume
+        return getSidecarDir().getUsableSpace();
+    }
+
+    @Override
+    public File getSidecarDir(){
+        File dir = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        return (dir != null) ? dir : context.getFilesDir();
+    }
+
+    @Override
+    public Uri getPlayableUri(String name){
+        Item item = find(name, false);
+        return (item == null) ? null : item.uri;
+    }
+
+    private Item find(String name, boolean pending){
+        Uri saved = getItemUri(name);
+        if(saved != null){
+            Item item = query(MediaStore.setIncludePending(saved), null, null, name);
+            if(item != null){
+                return (item.pending == pending) ? item : null;
+            }
+            forgetItemUri(name); // deleted from outside the app
+        }
+
+        // downloads from before their items were kept, by name, which is right as long as
+        // nothing was renamed
+        Item item = query(MediaStore.setIncludePending(collection), SELECTION, new String[]{ name, RELATIVE_PATH, pending ? "1" : "0" }, name);
+        if(item != null){
+            saveItemUri(name, item.uri);
+        }
+        return item;
+    }
+
+    private Item query(Uri uri, String selection, String[] args, String name){
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, PROJECTION, selection, args, null);
+            if(cursor != null && cursor.moveToFirst()){
+                return new Item(ContentUris.withAppendedId(collection, cursor.getLong(0)), cursor.getLong(1), cursor.getLong(2) != 0);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Couldn't look up " + name, e);
+        } finally {
+            if(cursor != null){
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
+    private Uri insert(String name){
+        String mimeType = URLConnection.guessContentTypeFromName(name);
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, (mimeType != null) ? mimeType : DEFAULT_MIME_TYPE);
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, RELATIVE_PATH);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = resolver.insert(collection, values);
+        if(uri != null){
+            saveItemUri(name, uri); // it may not have gotten the name it asked for
+        }
+        return uri;
+    }
+
+    private File getItemFile(String name){
+        return new File(getSidecarDir(), name + ITEM_SUFFIX);
+    }
+
+    /**
+     * @return the item a download was inserted as, or null if it isn't known
+     */
+    private Uri getItemUri(String name){
+        Uri uri = items.get(name);
+        if(uri != null){
+            return uri;
+        }
+
+        File file = getItemFile(name);
+        if(!file.exists()){
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while(read < bytes.length){
+                int n = fis.read(bytes, read, bytes.length - read);
+                if(n < 0){
+                    break;
+                }
+                read += n;
+            }
+            String saved = new String(bytes, 0, read, "UTF-8").trim();
+            if(saved.isEmpty()){
+                return null;
+            }
+            uri = Uri.parse(saved);
+            items.put(name, uri);
+            return uri;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read item of " + name, e);
+            return null;
+        } finally {
+            if(fis != null){
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing item file", e);
+                }
+            }
+        }
+    }
+
+    private void saveItemUri(String name, Uri uri){
+        items.put(name, uri);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(getItemFile(name));
+            fos.write(uri.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            // still kept for as long as the process lives, after that it's back to the name
+            Log.e(TAG, "Couldn't save item of " + name, e);
+        } finally {
+            if(fos != null){
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exception closing item file", e);
+                }
+            }
+        }
+    }
+
+    private void forgetItemUri(String name){
+        items.remove(name);
+        getItemFile(name).delete();
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd){
+        if(pfd != null){
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "exception closing file descriptor", e);
+            }
+        }
+    }
+
+    private static class Item {
+        final Uri uri;
+        final long size;
+        final boolean pending;
+
+        Item(Uri uri, long size, boolean pending){
+            this.uri = uri;
+            this.size = size;
+            this.pending = pending;
+        }
+    }
+
+}
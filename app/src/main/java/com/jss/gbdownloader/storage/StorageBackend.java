@@ -0,0 +1,101 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader.storage;
+
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where downloads are written. Each download is a partial while it's being written and gets
+ * published under its own name once it's complete. Names are bare file names, no path.
+ */
+public interface StorageBackend {
+
+    /**
+     * @return length of the finished download, or -1 if there isn't one
+     */
+    long length(String name);
+
+    /**
+     * @return length of the partial, or -1 if there isn't one
+     */
+    long partialLength(String name);
+
+    /**
+     * Open the partial for reading and writing at any offset, creating it if it isn't there.
+     * @param truncate start it over empty
+     */
+    Handle openPartial(String name, boolean truncate) throws IOException;
+
+    /**
+     * Open the finished download or the partial for reading only. Closing the channel closes
+     * the file.
+     */
+    FileChannel openForRead(String name, boolean partial) throws IOException;
+
+    /**
+     * Make a complete partial the finished download.
+     * @return false if it couldn't be
+     */
+    boolean publish(String name);
+
+    /**
+     * Make the finished download a partial again, so parts of it can be written over.
+     * @return false if it couldn't be
+     */
+    boolean unpublish(String name);
+
+    boolean deletePartial(String name);
+
+    boolean delete(String name);
+
+    /**
+     * @return bytes free on the volume downloads go to
+     */
+    long getUsableSpace();
+
+    /**
+     * @return where the files kept alongside a download go (state, checksum)
+     */
+    File getSidecarDir();
+
+    /**
+     * @return something a player can open for the finished download, or null if there isn't one
+     */
+    Uri getPlayableUri(String name);
+
+    /**
+     * An open partial. Reads and writes are positional, so threads can share the same partial
+     * through handles of their own.
+     */
+    interface Handle extends Closeable {
+        FileChannel getReadChannel();
+        FileChannel getWriteChannel();
+        FileDescriptor getFD() throws IOException;
+        long length() throws IOException;
+        void setLength(long length) throws IOException;
+    }
+
+}
@@ -36,6 +36,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -47,20 +48,24 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.jss.gbdownloader.Constants;
 import com.jss.gbdownloader.FileUtils;
+import com.jss.gbdownloader.QualityPicker;
 import com.jss.gbdownloader.R;
+import com.jss.gbdownloader.aidl.DownloadStatus;
 import com.jss.gbdownloader.aidl.IDownloadServicelInterface;
 import com.jss.gbdownloader.model.GBVideoInfo;
 import com.jss.gbdownloader.net.NetUtils;
 
-import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * {@link RecyclerView.Adapter} that can display a {@link GBVideoInfo}.
@@ -69,8 +74,42 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
 
     private static final String TAG = GBVidsItemRecyclerViewAdapter.class.getSimpleName();
 
+    // rows bound within this long of each other are probed as one batch
+    private static final long PROBE_BATCH_DELAY = 250;
+
     private final List<GBVideoInfo> mValues = new ArrayList<>();
     private final Hashtable<String, ProgressListener> progressTable = new Hashtable<>();
+    // what the service last said about each uri, fetched for the whole list in one call
+    private final Hashtable<String, DownloadStatus> statusTable = new Hashtable<>();
+    // real sizes of the videos, from probes and the service's status
+    private final Hashtable<String, Long> sizeTable = new Hashtable<>();
+    // the service's throughput estimate, from progress frames, what auto quality picks by
+    private long throughput = QualityPicker.DEFAULT_RATE;
+
+    private final List<String> probeBatch = new ArrayList<>();
+    private final Handler handler = new Handler();
+    // status lookups touch the disk and MediaStore, so they're made here and posted back
+    private final ExecutorService statusExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable sendProbes = new Runnable() {
+        @Override
+        public void run() {
+            if(svcInterface == null || probeBatch.isEmpty()){
+                return; // the connect does a full refresh
+            }
+            String[] uris = probeBatch.toArray(new String[probeBatch.size()]);
+            probeBatch.clear();
+            try {
+                long[] lengths = svcInterface.probeSizes(uris);
+                for(int i = 0; i < uris.length; i++){
+                    if(lengths[i] > -1){
+                        sizeTable.put(uris[i], lengths[i]);
+                    }
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException probing sizes", e);
+            }
+        }
+    };
 
     private Activity activity;
 
@@ -80,6 +119,12 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             svcInterface = (IDownloadServicelInterface)iBinder;
+            try {
+                setThroughput(svcInterface.getThroughput()); // progress frames keep it current from here
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException getting throughput", e);
+            }
+            refreshStatus();
         }
 
         @Override
@@ -92,14 +137,155 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         this.activity = activity;
     }
 
+    /**
+     * Stops the status thread, for when the activity goes away.
+     */
+    public void release(){
+        statusExecutor.shutdownNow();
+        handler.removeCallbacksAndMessages(null);
+    }
+
     public void clearData(){
         mValues.clear();
+        statusTable.clear();
         notifyDataSetChanged();
     }
 
     public void addData(List<GBVideoInfo> data){
+        int start = mValues.size();
         mValues.addAll(data);
-        notifyDataSetChanged();
+
+        // pages come in a few videos at a time, only the new ones need their status
+        List<String> uris = new ArrayList<>();
+        for(GBVideoInfo info : data){
+            for(URI uri : info.getVideoUrls().values()){
+                uris.add(uri.toString());
+            }
+        }
+        refreshStatus(uris.toArray(new String[uris.size()]));
+        notifyItemRangeInserted(start, data.size());
+    }
+
+    /**
+     * Ask the service about every quality of every video in the list, in one call.
+     */
+    public void refreshStatus(){
+        List<String> uris = new ArrayList<>();
+        for(GBVideoInfo info : mValues){
+            for(URI uri : info.getVideoUrls().values()){
+                uris.add(uri.toString());
+            }
+        }
+        refreshStatus(uris.toArray(new String[uris.size()]));
+    }
+
+    /**
+     * Looks the uris up off the main thread, the rows are redrawn once the answer is back.
+     */
+    private void refreshStatus(final String... uris){
+        final IDownloadServicelInterface svc = svcInterface;
+        if(svc == null || uris.length == 0 || statusExecutor.isShutdown()){
+            return;
+        }
+        statusExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DownloadStatus[] statuses;
+                try {
+                    statuses = svc.getStatus(uris);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "RemoteException getting download status", e);
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(DownloadStatus status : statuses){
+                            statusTable.put(status.uri, status);
+                            if(status.total > 0){
+                                sizeTable.put(status.uri, status.total);
+                            }
+                        }
+                        notifyDataSetChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return url of whichever quality of the video is queued, downloading or already on disk,
+     * best first, or else the quality the service would pick for it now. Only goes by what's
+     * already in the tables, this runs on every bind.
+     */
+    private String getAutoUrl(GBVideoInfo info){
+        ArrayList<NetUtils.VidQuality> quals = info.getVidQuals();
+        if(quals.isEmpty()){
+            return null;
+        }
+
+        for(NetUtils.VidQuality q : quals){
+            String uri = info.getVideoUrl(q).toString();
+            DownloadStatus status = statusTable.get(uri);
+            if(status != null && status.state != DownloadStatus.NONE){
+                return uri;
+            }
+        }
+
+        int pick = QualityPicker.pick(getSizes(info, quals), throughput, QualityPicker.DEFAULT_TARGET_MS);
+        return info.getVideoUrl(quals.get(Math.max(0, pick))).toString();
+    }
+
+    /**
+     * @param bytesPerSec the service's throughput estimate, ignored if it isn't one
+     */
+    public void setThroughput(long bytesPerSec){
+        if(bytesPerSec > 0){
+            throughput = bytesPerSec;
+        }
+    }
+
+    /**
+     * @return bytes of each quality, probed where it's known and estimated where it isn't
+     */
+    private long[] getSizes(GBVideoInfo info, List<NetUtils.VidQuality> quals){
+        long[] sizes = new long[quals.size()];
+        for(int i = 0; i < sizes.length; i++){
+            Long size = sizeTable.get(info.getVideoUrl(quals.get(i)).toString());
+            sizes[i] = (size != null) ? size : info.getEstimatedSize(quals.get(i));
+        }
+        return sizes;
+    }
+
+    /**
+     * Sizes found by the service's probes.
+     */
+    public void updateSizes(String[] uris, long[] lengths){
+        boolean changed = false;
+        for(int i = 0; i < uris.length && i < lengths.length; i++){
+            if(lengths[i] > -1){
+                sizeTable.put(uris[i], lengths[i]);
+                changed = true;
+            }
+        }
+        if(changed){
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Ask for the sizes of a row's videos. Rows bound close together go to the service as one
+     * batch, and anything already known comes back right away.
+     */
+    private void queueProbe(GBVideoInfo info){
+        for(URI uri : info.getVideoUrls().values()){
+            String uriStr = uri.toString();
+            if(!sizeTable.containsKey(uriStr) && !probeBatch.contains(uriStr)){
+                probeBatch.add(uriStr);
+            }
+        }
+        handler.removeCallbacks(sendProbes);
+        handler.postDelayed(sendProbes, PROBE_BATCH_DELAY);
     }
 
     public void updateProgress(String uri, int progress){
@@ -111,6 +297,36 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         }
     }
 
+    /**
+     * A finished download was checked, and if any of it was bad that part is downloading again.
+     * @param bad bytes that failed, -1 if it couldn't be checked
+     */
+    public void repairChecked(String uri, long bad){
+        if(uri == null){
+            return;
+        }
+        refreshStatus(uri);
+
+        String name = FileUtils.getFilenameForUrl(uri);
+        String msg;
+        if(bad < 0){
+            msg = activity.getString(R.string.repair_failed, name);
+        } else if(bad == 0){
+            msg = activity.getString(R.string.repair_ok, name);
+        } else {
+            msg = activity.getString(R.string.repair_fetching, Formatter.formatShortFileSize(activity, bad), name);
+        }
+        Toast.makeText(activity, msg, Toast.LENGTH_LONG).show();
+    }
+
+    public void downloadFinished(String uri){
+        refreshStatus(uri);
+        ProgressListener l = progressTable.get(uri);
+        if(l != null){
+            l.onFinished();
+        }
+    }
+
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
@@ -129,6 +345,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         holder.mVidTitleView.setText(title);
         holder.mVidDescView.setText(holder.mItem.getDesc());
         holder.mVidLengthView.setText(holder.mItem.getLength());
+        queueProbe(holder.mItem);
 
         holder.mTxtsLayout.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -143,20 +360,17 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         holder.mVidQualSpinner.setAdapter(new ArrayAdapter<String>(activity.getApplicationContext(), android.R.layout.simple_spinner_item, holder.mItem.getVidQualsStrings()));
         holder.mVidQualSpinner.setSelection(holder.mItem.getQualPos(), false);
 
-        URI uri = holder.mItem.getVideoUrl(NetUtils.VidQuality.from((String) holder.mVidQualSpinner.getSelectedItem()));
-        String uriStr = null;
+        String uriStr = holder.getSelectedUrl();
         // if uri is null, quality not available, try to find another
-        if (uri == null) {
+        if (uriStr == null) {
             for (int i = 0; i < holder.mVidQualSpinner.getAdapter().getCount(); i++) {
-                uri = holder.mItem.getVideoUrl(NetUtils.VidQuality.from((String) holder.mVidQualSpinner.getItemAtPosition(i)));
+                URI uri = holder.mItem.getVideoUrl(NetUtils.VidQuality.from((String) holder.mVidQualSpinner.getItemAtPosition(i)));
                 if(uri != null) {
                     // found one, break
                     uriStr = uri.toString();
                     break;
                 }
             }
-        } else {
-            uriStr = uri.toString();
         }
 
         if(uriStr != null) {
@@ -190,6 +404,8 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
 
         holder.mItem.setQualPos(holder.mVidQualSpinner.getSelectedItemPosition());
 
+        NetUtils.cancelImageForView(holder.mVidImgView);
+
         super.onViewRecycled(holder);
     }
 
@@ -209,6 +425,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         public final Spinner mVidQualSpinner;
         public final ImageButton mVidDLButton;
         public final ImageButton mVidDeleteButton;
+        public final ImageButton mVidPlayButton;
         public final ProgressBar mProgressBar;
         public final TextView mProgressText;
         public final View mTxtsLayout;
@@ -224,6 +441,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
             mVidQualSpinner = (Spinner) view.findViewById(R.id.vidQualSpinner);
             mVidDLButton = (ImageButton) view.findViewById(R.id.dwnld_btn);
             mVidDeleteButton = (ImageButton) view.findViewById(R.id.delete_btn);
+            mVidPlayButton = (ImageButton) view.findViewById(R.id.play_btn);
             mProgressBar = (ProgressBar) view.findViewById(R.id.progressBar);
             mProgressText = (TextView) view.findViewById(R.id.progressText);
             mTxtsLayout = view.findViewById(R.id.txts_layout);
@@ -232,8 +450,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                 @Override
                 public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
                     if(ViewHolder.this.mItem != null) {
-                        String uri = ViewHolder.this.mItem.getVideoUrl(NetUtils.VidQuality.from((String) ViewHolder.this.mVidQualSpinner.getSelectedItem())).toString();
-                        checkProgressListenerAttached(uri);
+                        checkProgressListenerAttached(getSelectedUrl());
                         updateDLButton();
                     }
                 }
@@ -251,12 +468,54 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
         }
 
         public void checkProgressListenerAttached(String uri) {
+            if(isAutoSelected()){
+                // the service can switch auto to another quality, so listen to all of them
+                for(URI other : mItem.getVideoUrls().values()){
+                    attachProgressListener(other.toString());
+                }
+            } else {
+                attachProgressListener(uri);
+            }
+        }
+
+        private void showSize(String uri) {
+            Long size = (uri == null) ? null : sizeTable.get(uri);
+            if(size == null){
+                mVidLengthView.setText(mItem.getLength());
+            } else {
+                mVidLengthView.setText(mItem.getLength() + "  " + Formatter.formatShortFileSize(activity, size));
+            }
+        }
+
+        private boolean isAutoSelected() {
+            return NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem()) == NetUtils.VidQuality.AUTO;
+        }
+
+        /**
+         * @return url of the selected quality, for auto it's the quality the service has
+         * something of, or else the one it would pick now. Null if there isn't one.
+         */
+        public String getSelectedUrl() {
+            NetUtils.VidQuality qual = NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem());
+            if(qual == NetUtils.VidQuality.AUTO){
+                return getAutoUrl(mItem);
+            }
+            URI uri = mItem.getVideoUrl(qual);
+            return (uri == null) ? null : uri.toString();
+        }
+
+        private void attachProgressListener(String uri) {
             if(!progressTable.containsKey(uri)){
                 progressTable.put(uri, new ProgressListener() {
                     @Override
                     public void onProgressUpdated(int progress) {
                         updateProgress(progress);
                     }
+
+                    @Override
+                    public void onFinished() {
+                        updateDLButton();
+                    }
                 });
             }
         }
@@ -285,20 +544,26 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
 
         public void updateDLButton(){
             if(mItem != null){
-                String uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem())).toString();
-                //check if the video is downloaded
-                try{
+                String uri = getSelectedUrl();
+                showSize(uri);
+                DownloadStatus status = statusTable.get(uri);
+                if(status == null){
+                    //service isn't connected yet, go by what's on disk
                     if(FileUtils.checkIfDownloaded(uri)){
                         updateDLButton(Constants.DLButtonState.DOWNLOADED);
-                    } else if(svcInterface != null && svcInterface.isQueued(uri)){
-                        updateDLButton(Constants.DLButtonState.DOWNLOADING);
                     } else if (FileUtils.checkIfPartialDownloaded(uri) > -1L){
                         updateDLButton(Constants.DLButtonState.PARTIAL);
                     } else {
                         updateDLButton(Constants.DLButtonState.READY);
                     }
-                } catch (RemoteException e){
-                    Log.e(TAG, "RemoteException updating button (checking if queued)", e);
+                } else if(status.state == DownloadStatus.DOWNLOADED){
+                    updateDLButton(Constants.DLButtonState.DOWNLOADED);
+                } else if(status.isQueued()){
+                    updateDLButton(Constants.DLButtonState.DOWNLOADING);
+                } else if(status.state == DownloadStatus.PARTIAL){
+                    updateDLButton(Constants.DLButtonState.PARTIAL);
+                } else {
+                    updateDLButton(Constants.DLButtonState.READY);
                 }
 
             }
@@ -308,6 +573,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
             mProgressBar.setVisibility(View.INVISIBLE);
             mProgressText.setVisibility(View.INVISIBLE);
             mVidDeleteButton.setVisibility(View.GONE);
+            mVidPlayButton.setVisibility(View.GONE);
             switch (state){
                 case READY:
 
@@ -318,18 +584,22 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                             if(svcInterface != null){
                                 try {
 
-                                    String uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem())).toString();
-
-                                    if(!progressTable.containsKey(uri)){
-                                        progressTable.put(uri, new ProgressListener() {
-                                            @Override
-                                            public void onProgressUpdated(int progress) {
-                                                updateProgress(progress);
-                                            }
-                                        });
+                                    if(isAutoSelected()){
+                                        // the service picks, and can switch to a lower one while it's queued
+                                        ArrayList<NetUtils.VidQuality> quals = mItem.getVidQuals();
+                                        String[] uris = new String[quals.size()];
+                                        for(int i = 0; i < uris.length; i++){
+                                            uris[i] = mItem.getVideoUrl(quals.get(i)).toString();
+                                        }
+                                        checkProgressListenerAttached(getSelectedUrl());
+                                        svcInterface.enqueueAuto(uris, getSizes(mItem, quals));
+                                        refreshStatus(uris);
+                                    } else {
+                                        String uri = getSelectedUrl();
+                                        checkProgressListenerAttached(uri);
+                                        svcInterface.enqueue(uri);
+                                        refreshStatus(uri);
                                     }
-
-                                    svcInterface.enqueue(uri);
                                 } catch (RemoteException e) {
                                     Log.e(TAG, "Remote Exception clicking download", e);
                                 }
@@ -344,7 +614,7 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                     mVidDeleteButton.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
-                            URI uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem()));
+                            URI uri = URI.create(getSelectedUrl());
                             promptDelete(uri, false, ViewHolder.this);
                         }
                     });
@@ -352,30 +622,27 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                     mVidDLButton.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
-                            // vlc intent from https://wiki.videolan.org/Android_Player_Intents/
-                            int vlcRequestCode = 42;
-                            URI url = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem()));
-                            File f = FileUtils.getFileForUrl(url);
-                            Uri uri = Uri.parse(f.getAbsolutePath());
-                            Intent vlcIntent = new Intent(Intent.ACTION_VIEW);
-                            vlcIntent.setPackage("org.videolan.vlc");
-                            vlcIntent.setDataAndTypeAndNormalize(uri, "video/*");
-                            vlcIntent.setComponent(new ComponentName("org.videolan.vlc", "org.videolan.vlc.gui.video.VideoPlayerActivity"));
-                            activity.startActivityForResult(vlcIntent, vlcRequestCode);
+                            Uri uri = FileUtils.getPlayableUri(getSelectedUrl());
+                            if(uri == null){
+                                return; // deleted from outside the app
+                            }
+                            play(uri);
                         }
                     });
                     break;
                 case DOWNLOADING:
                     mProgressBar.setVisibility(View.VISIBLE);
                     mProgressText.setVisibility(View.VISIBLE);
+                    showStreamButton();
                     mVidDLButton.setImageResource(android.R.drawable.ic_media_pause);
                     mVidDLButton.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
                             if(svcInterface != null){
                                 try {
-                                    String uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem())).toString();
+                                    String uri = getSelectedUrl();
                                     svcInterface.cancel(uri);
+                                    refreshStatus(uri);
                                 } catch (RemoteException e) {
                                     Log.e(TAG, "Remote Exception clicking stop dl", e);
                                 }
@@ -385,11 +652,12 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                     });
                     break;
                 case PARTIAL:
+                    showStreamButton();
                     mVidDeleteButton.setVisibility(View.VISIBLE);
                     mVidDeleteButton.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
-                            URI uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem()));
+                            URI uri = URI.create(getSelectedUrl());
                             promptDelete(uri, true, ViewHolder.this);
                         }
                     });
@@ -399,8 +667,9 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                         public void onClick(View view) {
                             if(svcInterface != null){
                                 try {
-                                    String uri = mItem.getVideoUrl(NetUtils.VidQuality.from((String) mVidQualSpinner.getSelectedItem())).toString();
+                                    String uri = getSelectedUrl();
                                     svcInterface.enqueue(uri);
+                                    refreshStatus(uri);
                                 } catch (RemoteException e) {
                                     Log.e(TAG, "Remote Exception clicking retry download", e);
                                 }
@@ -413,6 +682,42 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
             }
         }
 
+        /**
+         * Play what's there of an unfinished download, the service streams it to the player
+         * and fetches ahead of where it's reading.
+         */
+        private void showStreamButton(){
+            mVidPlayButton.setVisibility(View.VISIBLE);
+            mVidPlayButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    if(svcInterface != null){
+                        try {
+                            String url = svcInterface.getStreamUrl(getSelectedUrl());
+                            if(url != null){
+                                play(Uri.parse(url));
+                            } else {
+                                Toast.makeText(activity, R.string.stream_not_ready, Toast.LENGTH_SHORT).show();
+                            }
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "Remote Exception clicking stream", e);
+                        }
+                    }
+                }
+            });
+        }
+
+    }
+
+    private void play(Uri uri){
+        // vlc intent from https://wiki.videolan.org/Android_Player_Intents/
+        int vlcRequestCode = 42;
+        Intent vlcIntent = new Intent(Intent.ACTION_VIEW);
+        vlcIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        vlcIntent.setPackage("org.videolan.vlc");
+        vlcIntent.setDataAndTypeAndNormalize(uri, "video/*");
+        vlcIntent.setComponent(new ComponentName("org.videolan.vlc", "org.videolan.vlc.gui.video.VideoPlayerActivity"));
+        activity.startActivityForResult(vlcIntent, vlcRequestCode);
     }
 
     private void promptDelete(final URI videoUrl, final boolean partial, final ViewHolder view){
@@ -422,29 +727,45 @@ public class GBVidsItemRecyclerViewAdapter extends RecyclerView.Adapter<GBVidsIt
                 .setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
-                        File file = null;
                         if(partial){
-                            file = FileUtils.getPartialFileForUrl(videoUrl);
+                            FileUtils.deletePartial(videoUrl);
                         } else {
-                            file = FileUtils.getFileForUrl(videoUrl);
+                            FileUtils.deleteDownload(videoUrl);
                         }
 
-                        if(file != null){
-                            file.delete();
+                        refreshStatus(videoUrl.toString());
 
-                            if(view != null){
-                                view.updateDLButton();
-                            }
+                        if(view != null){
+                            view.updateDLButton();
                         }
                     }
                 })
-                .setNegativeButton(R.string.cancel, null)
-                .show();
+                .setNegativeButton(R.string.cancel, null);
+
+        if(!partial){
+            // a corrupt download can usually be fixed without fetching all of it again
+            builder.setNeutralButton(R.string.repair, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialogInterface, int i) {
+                    boolean started = false;
+                    if(svcInterface != null){
+                        try {
+                            started = svcInterface.repair(videoUrl.toString());
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "Remote Exception clicking repair", e);
+                        }
+                    }
+                    Toast.makeText(activity, started ? R.string.repair_started : R.string.repair_unavailable, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+        builder.show();
     }
 
 
     public interface ProgressListener {
         void onProgressUpdated(int progress);
+        void onFinished();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ChunkMapTest {
+
+    @Test
+    public void hasher_unalignedWrites_matchWholeFile() {
+        int size = 2 * ChunkMap.CHUNK_SIZE + 12345;
+        byte[] data = new byte[size];
+        new Random(7).nextBytes(data);
+        CRC32 whole = new CRC32();
+        whole.update(data, 0, size);
+
+        ChunkMap chunks = new ChunkMap(size, null);
+        ChunkMap.Hasher hasher = chunks.hasher(0);
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024 + 7);
+        for(int pos = 0; pos < size; pos += buf.capacity()){
+            buf.clear();
+            buf.put(data, pos, Math.min(buf.capacity(), size - pos));
+            buf.flip();
+            int limit = buf.limit();
+            hasher.update(buf);
+            assertEquals("position left alone", 0, buf.position());
+            assertEquals("limit left alone", limit, buf.limit());
+        }
+
+        assertEquals(whole.getValue(), chunks.getChecksum(0, size).getValue());
+    }
+
+}
@@ -0,0 +1,292 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+
+    private static final long TIMEOUT = 5;
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Records that it started, then waits for the gate.
+     */
+    private Callable<String> task(final String uri, final CountDownLatch gate){
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.add(uri);
+                if(gate != null){
+                    gate.await();
+                }
+                return uri;
+            }
+        };
+    }
+
+    private Callable<String> task(String uri){
+        return task(uri, null);
+    }
+
+    private static void awaitStarted(List<String> started, String uri) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while(!started.contains(uri)){
+            assertTrue("never started: " + uri, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void highestPriorityFirst_tiesInQueueOrder() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        Future<String> blocker = scheduler.submit("https://a/block", 0, task("https://a/block", gate));
+        Future<String> low = scheduler.submit("https://b/low", 0, task("https://b/low"));
+        Future<String> high = scheduler.submit("https://c/high", 5, task("https://c/high"));
+        Future<String> high2 = scheduler.submit("https://d/high2", 5, task("https://d/high2"));
+
+        gate.countDown();
+        for(Future<String> f : Arrays.asList(blocker, low, high, high2)){
+            f.get(TIMEOUT, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("https://a/block", "https://c/high", "https://d/high2", "https://b/low"), started);
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void moveToFront_goesNext() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        Future<String> blocker = scheduler.submit("https://a/block", 0, task("https://a/block", gate));
+        Future<String> high = scheduler.submit("https://b/high", 3, task("https://b/high"));
+        Future<String> last = scheduler.submit("https://c/last", 0, task("https://c/last"));
+        assertTrue(scheduler.moveToFront("https://c/last"));
+        assertFalse("running tasks can't move", scheduler.moveToFront("https://a/block"));
+
+        gate.countDown();
+        for(Future<String> f : Arrays.asList(blocker, high, last)){
+            f.get(TIMEOUT, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("https://a/block", "https://c/last", "https://b/high"), started);
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void perHostCap_letsOtherHostsThrough() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 1, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        Future<String> a1 = scheduler.submit("https://a/1", 0, task("https://a/1", gate));
+        Future<String> a2 = scheduler.submit("https://a/2", 0, task("https://a/2"));
+        Future<String> b1 = scheduler.submit("https://b/1", 0, task("https://b/1"));
+
+        // b isn't held up behind a's queued one
+        assertEquals("https://b/1", b1.get(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(started.contains("https://a/2"));
+        assertFalse(scheduler.isRunning("https://a/2"));
+
+        gate.countDown();
+        a1.get(TIMEOUT, TimeUnit.SECONDS);
+        a2.get(TIMEOUT, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void maxConcurrent_caps() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 2, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        scheduler.submit("https://a/1", 0, task("https://a/1", gate));
+        scheduler.submit("https://b/1", 0, task("https://b/1", gate));
+        Future<String> c1 = scheduler.submit("https://c/1", 0, task("https://c/1"));
+
+        awaitStarted(started, "https://b/1");
+        assertFalse(started.contains("https://c/1"));
+
+        // raising the cap starts it right away
+        scheduler.setLimits(3, 2);
+        c1.get(TIMEOUT, TimeUnit.SECONDS);
+        gate.countDown();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void extraConnections_comeOutOfHostCap() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 3, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        scheduler.submit("https://a/1", 0, task("https://a/1", gate));
+        awaitStarted(started, "https://a/1");
+        assertEquals("capped at what the host has left", 3, scheduler.requestConnections("https://a/1", 4));
+        assertEquals("not running", 1, scheduler.requestConnections("https://a/other", 4));
+
+        Future<String> a2 = scheduler.submit("https://a/2", 0, task("https://a/2"));
+        Future<String> b1 = scheduler.submit("https://b/1", 0, task("https://b/1"));
+        assertEquals("https://b/1", b1.get(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse("host is full", started.contains("https://a/2"));
+
+        // giving the extras back lets the next one for the host go
+        assertEquals(2, scheduler.requestConnections("https://a/1", 2));
+        assertEquals("https://a/2", a2.get(TIMEOUT, TimeUnit.SECONDS));
+
+        gate.countDown();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void pausedInQueue_waitsForResume() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, null);
+
+        Future<String> paused = scheduler.submit("https://a/paused", 0, true, task("https://a/paused"));
+        assertTrue(scheduler.isPaused("https://a/paused"));
+        assertTrue("paused tasks don't keep it busy", scheduler.isIdle());
+
+        scheduler.submit("https://b/other", 0, task("https://b/other")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertFalse(started.contains("https://a/paused"));
+
+        assertTrue(scheduler.resume("https://a/paused"));
+        assertEquals("https://a/paused", paused.get(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(scheduler.resume("https://a/paused"));
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void pausedWhileRunning_resumesOnlyOnceOldRunReturns() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 2, null);
+        final CountDownLatch unstick = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        // ignores interrupts, like a read that's stuck until the connection is closed
+        Callable<String> stuck = new Callable<String>() {
+            @Override
+            public String call() {
+                runs.incrementAndGet();
+                maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                try {
+                    while(true){
+                        try {
+                            unstick.await();
+                            break;
+                        } catch (InterruptedException e) {
+                            // keep going
+                        }
+                    }
+                } finally {
+                    running.decrementAndGet();
+                }
+                return "done";
+            }
+        };
+
+        scheduler.submit("https://a/1", 0, stuck);
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while(runs.get() == 0){
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        Future<String> resumed = scheduler.pause("https://a/1");
+        assertNotNull(resumed);
+        assertTrue(scheduler.resume("https://a/1"));
+
+        try {
+            resumed.get(200, TimeUnit.MILLISECONDS);
+            fail("resumed while the old run was still going");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertEquals(1, runs.get());
+
+        unstick.countDown();
+        assertEquals("done", resumed.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+        assertEquals(1, maxRunning.get());
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void held_isNotIdle_untilReleased() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(1, 1, null);
+        final AtomicInteger runs = new AtomicInteger();
+        final Future<?>[] held = new Future<?>[1];
+
+        Future<String> first = scheduler.submit("https://a/1", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                if(runs.incrementAndGet() == 1){
+                    held[0] = scheduler.hold("https://a/1"); // can't go on yet
+                    return "held";
+                }
+                return "done";
+            }
+        });
+
+        assertEquals("held", first.get(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(scheduler.isHeld("https://a/1"));
+        assertFalse("a held task keeps it busy", scheduler.isIdle());
+
+        assertTrue(scheduler.releaseHeld("https://a/1"));
+        assertEquals("done", held[0].get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while(!scheduler.isIdle()){
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void cancelQueued_neverRuns() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, null);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        Future<String> blocker = scheduler.submit("https://a/block", 0, task("https://a/block", gate));
+        Future<String> cancelled = scheduler.submit("https://b/1", 0, task("https://b/1"));
+        assertTrue(cancelled.cancel(true));
+
+        gate.countDown();
+        blocker.get(TIMEOUT, TimeUnit.SECONDS);
+        scheduler.submit("https://c/1", 0, task("https://c/1")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertFalse(started.contains("https://b/1"));
+        scheduler.shutdownNow();
+    }
+
+}
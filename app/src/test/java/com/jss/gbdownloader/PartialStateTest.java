@@ -0,0 +1,124 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PartialStateTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long MIN = 8 * MB;
+
+    /**
+     * Ranges are in order, back to back, and cover the whole file.
+     */
+    private static void assertCovers(PartialState state, long length){
+        long at = 0;
+        for(PartialState.Segment seg : state.getSegments()){
+            assertEquals(at, seg.start);
+            assertTrue(seg.end > seg.start || seg.end == length);
+            at = seg.end;
+        }
+        assertEquals(length, at);
+        assertEquals(length, state.getLength());
+    }
+
+    @Test
+    public void split_evenly() {
+        PartialState state = PartialState.split(0, 100 * MB, 4, MIN, "\"etag\"");
+        List<PartialState.Segment> segs = state.getSegments();
+        assertEquals(4, segs.size());
+        assertCovers(state, 100 * MB);
+        assertEquals(25 * MB, segs.get(0).end);
+        assertEquals(0, state.getDone());
+        assertEquals("\"etag\"", state.getValidator());
+        assertFalse(state.isComplete());
+    }
+
+    @Test
+    public void split_lastRangeTakesRemainder() {
+        long length = 4 * MIN * 3 + 3;
+        PartialState state = PartialState.split(0, length, 4, MIN, null);
+        assertEquals(4, state.getSegments().size());
+        assertCovers(state, length);
+        assertNull(state.getValidator());
+    }
+
+    @Test
+    public void split_countCappedByMinSize() {
+        assertEquals(2, PartialState.split(0, 20 * MB, 4, MIN, null).getSegments().size());
+        assertCovers(PartialState.split(0, 20 * MB, 4, MIN, null), 20 * MB);
+    }
+
+    @Test
+    public void split_lessThanTwoMinSizes_staysOneRange() {
+        PartialState state = PartialState.split(0, 15 * MB, 4, MIN, null);
+        assertEquals(1, state.getSegments().size());
+        assertCovers(state, 15 * MB);
+
+        state = PartialState.split(0, 100, 4, MIN, null);
+        assertEquals(1, state.getSegments().size());
+        assertCovers(state, 100);
+    }
+
+    @Test
+    public void split_afterWhatsOnDisk() {
+        PartialState state = PartialState.split(10 * MB, 50 * MB, 4, MIN, null);
+        List<PartialState.Segment> segs = state.getSegments();
+
+        // what's on disk is a finished range of its own, then 40MB in 4 ranges
+        assertEquals(5, segs.size());
+        assertCovers(state, 50 * MB);
+        assertTrue(segs.get(0).isComplete());
+        assertEquals(10 * MB, segs.get(0).end);
+        assertEquals(10 * MB, state.getDone());
+        assertEquals(10 * MB, state.firstIncomplete().start);
+        assertEquals(10 * MB, state.getWrittenFrom(0));
+    }
+
+    @Test
+    public void split_nothingLeft_isComplete() {
+        PartialState state = PartialState.split(30 * MB, 30 * MB, 4, MIN, null);
+        assertCovers(state, 30 * MB);
+        assertTrue(state.isComplete());
+        assertNull(state.firstIncomplete());
+        assertEquals(30 * MB, state.getDone());
+    }
+
+    @Test
+    public void writtenFrom_runsOnThroughCompleteRanges() {
+        PartialState state = PartialState.split(0, 32 * MB, 4, MIN, null);
+        List<PartialState.Segment> segs = state.getSegments();
+
+        state.advance(segs.get(0), 8 * MB); // complete
+        state.advance(segs.get(1), MB);
+        state.advance(segs.get(2), 8 * MB); // complete, but after a gap
+
+        assertEquals(9 * MB, state.getWrittenFrom(0));
+        assertEquals(9 * MB, state.getWrittenFrom(9 * MB)); // not written yet
+        assertEquals(24 * MB, state.getWrittenFrom(16 * MB));
+        assertEquals(17 * MB, state.getDone());
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ *     Copyright 2020 Jacob Sommer
+ *
+ *     This file is part of gbdownloader.
+ *
+ *     gbdownloader is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     gbdownloader is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with gbdownloader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.jss.gbdownloader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class RangeChecksumTest {
+
+    private static final int SIZE = 300 * 1024 + 17; // not a multiple of anything
+
+    private static byte[] data(){
+        byte[] data = new byte[SIZE];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static long crcOf(byte[] data, int from, int to){
+        CRC32 crc = new CRC32();
+        crc.update(data, from, to - from);
+        return crc.getValue();
+    }
+
+    @Test
+    public void updatesInPieces_matchWholeFile() {
+        byte[] data = data();
+        RangeChecksum checksum = new RangeChecksum();
+        for(int pos = 0; pos < SIZE; pos += 4093){
+            checksum.update(ByteBuffer.wrap(data, pos, Math.min(4093, SIZE - pos)));
+        }
+        assertEquals(crcOf(data, 0, SIZE), checksum.getValue());
+        assertEquals(SIZE, checksum.getLength());
+    }
+
+    @Test
+    public void directBuffer_matchesHeap() {
+        byte[] data = data();
+        ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+        direct.put(data);
+        direct.flip();
+
+        RangeChecksum checksum = new RangeChecksum();
+        checksum.update(direct);
+        assertEquals(crcOf(data, 0, SIZE), checksum.getValue());
+        assertEquals("update leaves the buffer as it was", 0, direct.position());
+    }
+
+    @Test
+    public void resumedFromSaved_matchesWholeFile() {
+        byte[] data = data();
+        int cut = 123457;
+
+        RangeChecksum first = new RangeChecksum();
+        first.update(ByteBuffer.wrap(data, 0, cut));
+
+        // a second run picks up from what the first one saved
+        RangeChecksum resumed = RangeChecksum.parse(first.toString());
+        resumed.update(ByteBuffer.wrap(data, cut, SIZE - cut));
+
+        assertEquals(crcOf(data, 0, SIZE), resumed.getValue());
+        assertEquals(SIZE, resumed.getLength());
+
+        // and a third one from what the second saved
+        RangeChecksum again = RangeChecksum.parse(resumed.toString());
+        assertEquals(crcOf(data, 0, SIZE), again.getValue());
+    }
+
+    @Test
+    public void snapshot_formatsSameAsToString() {
+        byte[] data = data();
+        RangeChecksum checksum = RangeChecksum.parse(new RangeChecksum().toString());
+        checksum.add(1000, crcOf(data, 0, 1000));
+        checksum.update(ByteBuffer.wrap(data, 1000, 5000));
+
+        long length = checksum.getLiveLength();
+        long crc = checksum.getLiveValue();
+        String saved = checksum.toString();
+        assertEquals(saved, checksum.toString(length, crc));
+
+        checksum.update(ByteBuffer.wrap(data, 6000, 100));
+        assertEquals("the snapshot doesn't move with later updates", saved, checksum.toString(length, crc));
+    }
+
+    @Test
+    public void combinedRanges_matchWholeFile() {
+        byte[] data = data();
+        int[] cuts = { 0, 1, 65536, 65537, 200000, SIZE };
+
+        long crc = 0;
+        for(int i = 1; i < cuts.length; i++){
+            crc = RangeChecksum.combine(crc, crcOf(data, cuts[i - 1], cuts[i]), cuts[i] - cuts[i - 1]);
+        }
+        assertEquals(crcOf(data, 0, SIZE), crc);
+    }
+
+    @Test
+    public void combineWithEmpty_keepsFirst() {
+        assertEquals(0x12345678L, RangeChecksum.combine(0x12345678L, 0, 0));
+        assertEquals(0, new RangeChecksum().getValue());
+    }
+
+    @Test
+    public void readFromDisk_thenContinue_matchesWholeFile() throws Exception {
+        byte[] data = data();
+        File file = File.createTempFile("range", ".bin");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(data);
+            } finally {
+                fos.close();
+            }
+
+            int start = 1000;
+            int cut = 150000;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                RangeChecksum checksum = RangeChecksum.read(channel, start, cut - start);
+                checksum.update(ByteBuffer.wrap(data, cut, SIZE - cut));
+                assertEquals(crcOf(data, start, SIZE), checksum.getValue());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+}